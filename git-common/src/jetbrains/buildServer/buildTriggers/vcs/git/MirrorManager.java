@@ -52,4 +52,24 @@ public interface MirrorManager {
   public Map<String, File> getMappings();
 
   public long getLastUsedTime(@NotNull final File dir);
+
+  /**
+   * Remembers that the mirror dir is used now. The time is kept in memory,
+   * call {@link #saveLastUsedTimes()} to persist it.
+   * @param dir mirror dir
+   */
+  public void updateLastUsedTime(@NotNull File dir);
+
+  /**
+   * Writes last used times of mirrors updated since the previous save to the
+   * index file in the base mirrors dir
+   */
+  public void saveLastUsedTimes();
+
+  /**
+   * Records the current time as the last used time of mirror dirs missing in the index,
+   * e.g. created by previous versions of the plugin which kept it in a 'timestamp' file
+   * inside the mirror. Such mirrors expire only after the full expiration period without use.
+   */
+  public void addMissingLastUsedTimes();
 }
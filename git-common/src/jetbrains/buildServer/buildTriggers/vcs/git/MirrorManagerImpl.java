@@ -24,26 +24,41 @@ import org.eclipse.jgit.lib.StoredConfig;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Mapping is stored in the 'map' file which works as a journal: new mappings
+ * are appended to it, the file is rewritten only when it contains too many
+ * outdated records. Invalidated dirs are appended to the 'invalid' file,
+ * mappings to invalid dirs are ignored on load.
+ *
  * @author dmitry.neverov
  */
 public class MirrorManagerImpl implements MirrorManager {
 
   private static Logger LOG = Logger.getInstance(MirrorManagerImpl.class.getName());
+  private static final int MAX_OUTDATED_MAP_RECORDS = 1000;
 
   private final File myBaseMirrorsDir;
   private final File myMapFile;
   private final File myInvalidDirsFile;
+  private final File myLastUsedTimesFile;
   /*url -> dir name*/
-  private final Map<String, String> myMirrorMap = new HashMap<String, String>();
-  private final Set<String> myInvalidDirNames = new HashSet<String>();
+  private final ConcurrentMap<String, String> myMirrorMap = new ConcurrentHashMap<String, String>();
+  /*dir name -> url, every dir is used by a single url*/
+  private final ConcurrentMap<String, String> myDirToUrl = new ConcurrentHashMap<String, String>();
+  private final Set<String> myInvalidDirNames = new HashSet<String>();//guarded by myLock
+  /*guards changes of mappings, mappings can be read without it*/
   private final Object myLock = new Object();
+  private int myMapFileRecords;//guarded by myLock
   private final HashCalculator myHashCalculator;
+  /*dir name -> last used time*/
+  private final Map<String, Long> myLastUsedTimes = new HashMap<String, Long>();//guarded by myLastUsedTimes
+  private boolean myLastUsedTimesChanged;//guarded by myLastUsedTimes
+  private final Object mySaveLastUsedTimesLock = new Object();
 
 
   public MirrorManagerImpl(@NotNull MirrorConfig config, @NotNull HashCalculator hash) {
@@ -51,8 +66,10 @@ public class MirrorManagerImpl implements MirrorManager {
     myBaseMirrorsDir = config.getCachesDir();
     myMapFile = new File(myBaseMirrorsDir, "map");
     myInvalidDirsFile = new File(myBaseMirrorsDir, "invalid");
+    myLastUsedTimesFile = new File(myBaseMirrorsDir, "lastUsedTimes");
     loadInvalidDirs();
     loadMappings();
+    loadLastUsedTimes();
   }
 
 
@@ -69,25 +86,23 @@ public class MirrorManagerImpl implements MirrorManager {
 
 
   public void invalidate(@NotNull final File dir) {
+    if (!isMirrorDir(dir))
+      return;
     synchronized (myLock) {
-      List<String> urlsMappedToDir = getUrlsMappedToDir(dir);
-      for (String url : urlsMappedToDir) {
-        String dirName = myMirrorMap.remove(url);
-        myInvalidDirNames.add(dirName);
-      }
-      saveMappingToFile();
-      saveInvalidDirsToFile();
+      String dirName = dir.getName();
+      String url = myDirToUrl.remove(dirName);
+      if (url == null)
+        return;
+      myMirrorMap.remove(url, dirName);
+      if (myInvalidDirNames.add(dirName))
+        appendLine(myInvalidDirsFile, dirName);
     }
   }
 
 
   public Map<String, File> getMappings() {
-    Map<String, String> mirrorMapSnapshot;
-    synchronized (myLock) {
-      mirrorMapSnapshot = new HashMap<String, String>(myMirrorMap);
-    }
     Map<String, File> result = new HashMap<String, File>();
-    for (Map.Entry<String, String> entry : mirrorMapSnapshot.entrySet()) {
+    for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
       String url = entry.getKey();
       String dir = entry.getValue();
       result.put(url, new File(myBaseMirrorsDir, dir));
@@ -96,39 +111,81 @@ public class MirrorManagerImpl implements MirrorManager {
   }
 
 
+  /**
+   * Dirs missing in the index use their lastModified time, e.g. on the agent
+   * which doesn't maintain the index
+   */
   public long getLastUsedTime(@NotNull final File dir) {
-    File timestamp = new File(dir, "timestamp");
-    if (timestamp.exists()) {
-      try {
-        List<String> lines = FileUtil.readFile(timestamp);
-        if (lines.isEmpty())
-          return dir.lastModified();
-        else
-          return Long.valueOf(lines.get(0));
-      } catch (IOException e) {
-        return dir.lastModified();
+    if (isMirrorDir(dir)) {
+      synchronized (myLastUsedTimes) {
+        Long lastUsedTime = myLastUsedTimes.get(dir.getName());
+        if (lastUsedTime != null)
+          return lastUsedTime;
       }
-    } else {
-      return dir.lastModified();
     }
+    return dir.lastModified();
   }
 
 
-  @NotNull
-  private List<String> getUrlsMappedToDir(@NotNull final File dir) {
-    synchronized (myLock) {
-      List<String> urlsMappedToDir = new ArrayList<String>();
-      for (Map.Entry<String, String> entry : myMirrorMap.entrySet()) {
-        String url = entry.getKey();
-        String dirName = entry.getValue();
-        if (dir.equals(new File(myBaseMirrorsDir, dirName)))
-          urlsMappedToDir.add(url);
+  public void addMissingLastUsedTimes() {
+    File[] dirs = myBaseMirrorsDir.listFiles();
+    if (dirs == null)
+      return;
+    long now = System.currentTimeMillis();
+    synchronized (myLastUsedTimes) {
+      for (File dir : dirs) {
+        if (dir.isDirectory() && !myLastUsedTimes.containsKey(dir.getName())) {
+          myLastUsedTimes.put(dir.getName(), now);
+          myLastUsedTimesChanged = true;
+        }
       }
-      return urlsMappedToDir;
     }
   }
 
 
+  public void updateLastUsedTime(@NotNull final File dir) {
+    if (!isMirrorDir(dir))
+      return;
+    synchronized (myLastUsedTimes) {
+      myLastUsedTimes.put(dir.getName(), System.currentTimeMillis());
+      myLastUsedTimesChanged = true;
+    }
+  }
+
+
+  public void saveLastUsedTimes() {
+    synchronized (mySaveLastUsedTimesLock) {
+      Map<String, Long> lastUsedTimes;
+      synchronized (myLastUsedTimes) {
+        if (!myLastUsedTimesChanged)
+          return;
+        myLastUsedTimesChanged = false;
+        lastUsedTimes = new HashMap<String, Long>(myLastUsedTimes);
+      }
+      LOG.debug("Save last used times of mirrors to " + myLastUsedTimesFile.getAbsolutePath());
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Long> entry : lastUsedTimes.entrySet()) {
+        String dirName = entry.getKey();
+        if (!new File(myBaseMirrorsDir, dirName).isDirectory()) {
+          //mirror was removed by cleanup
+          synchronized (myLastUsedTimes) {
+            if (entry.getValue().equals(myLastUsedTimes.get(dirName)))
+              myLastUsedTimes.remove(dirName);
+          }
+          continue;
+        }
+        sb.append(dirName).append(" = ").append(entry.getValue()).append("\n");
+      }
+      writeFile(myLastUsedTimesFile, sb.toString());
+    }
+  }
+
+
+  private boolean isMirrorDir(@NotNull File dir) {
+    return myBaseMirrorsDir.equals(dir.getParentFile());
+  }
+
+
   /**
    * Returns repository dir name for specified url. Every url gets unique dir name.
    * @param url url of interest
@@ -136,18 +193,41 @@ public class MirrorManagerImpl implements MirrorManager {
    */
   @NotNull
   private String getDirNameForUrl(@NotNull final String url) {
+    String dirName = myMirrorMap.get(url);
+    if (dirName != null)
+      return dirName;
     synchronized (myLock) {
-      String dirName = myMirrorMap.get(url);
+      dirName = myMirrorMap.get(url);
       if (dirName != null)
         return dirName;
       dirName = getUniqueDirNameForUrl(url);
-      myMirrorMap.put(url, dirName);
-      saveMappingToFile();
+      addMapping(url, dirName);
+      myMapFileRecords++;
+      if (hasTooManyOutdatedRecords()) {
+        saveMappingToFile();
+      } else {
+        appendLine(myMapFile, url + " = " + dirName);
+      }
       return dirName;
     }
   }
 
 
+  //should be called under myLock
+  private void addMapping(@NotNull String url, @NotNull String dirName) {
+    String oldDirName = myMirrorMap.put(url, dirName);
+    if (oldDirName != null)
+      myDirToUrl.remove(oldDirName, url);
+    myDirToUrl.put(dirName, url);
+  }
+
+
+  //should be called under myLock
+  private boolean hasTooManyOutdatedRecords() {
+    return myMapFileRecords - myMirrorMap.size() > Math.max(MAX_OUTDATED_MAP_RECORDS, myMirrorMap.size());
+  }
+
+
   @NotNull
   private String getUniqueDirNameForUrl(@NotNull final String url) {
     String dirName = calculateDirNameForUrl(url);
@@ -169,9 +249,7 @@ public class MirrorManagerImpl implements MirrorManager {
 
 
   private boolean isOccupiedDirName(@NotNull final String dirName) {
-    synchronized (myLock) {
-      return myMirrorMap.values().contains(dirName)/* || new File(myBaseMirrorsDir, dirName).exists()*/;
-    }
+    return myDirToUrl.containsKey(dirName)/* || new File(myBaseMirrorsDir, dirName).exists()*/;
   }
 
 
@@ -191,7 +269,8 @@ public class MirrorManagerImpl implements MirrorManager {
         String dir = mirror.getValue();
         sb.append(url).append(" = ").append(dir).append("\n");
       }
-      FileUtil.writeFile(myMapFile, sb.toString());
+      writeFile(myMapFile, sb.toString());
+      myMapFileRecords = myMirrorMap.size();
     }
   }
 
@@ -203,7 +282,7 @@ public class MirrorManagerImpl implements MirrorManager {
       for (String dirName : myInvalidDirNames) {
         sb.append(dirName).append("\n");
       }
-      FileUtil.writeFile(myInvalidDirsFile, sb.toString());
+      writeFile(myInvalidDirsFile, sb.toString());
     }
   }
 
@@ -212,11 +291,34 @@ public class MirrorManagerImpl implements MirrorManager {
     synchronized (myLock) {
       LOG.debug("Parse invalid dirs file " + myInvalidDirsFile.getAbsolutePath());
       if (myInvalidDirsFile.exists()) {
-        for (String line : readLines(myInvalidDirsFile)) {
+        List<String> lines = new ArrayList<String>();
+        boolean complete = readJournal(myInvalidDirsFile, lines);
+        for (String line : lines) {
           String dirName = line.trim();
           if (dirName.length() > 0)
             myInvalidDirNames.add(dirName);
         }
+        if (!complete)
+          saveInvalidDirsToFile();
+      }
+    }
+  }
+
+
+  private void loadLastUsedTimes() {
+    if (!myLastUsedTimesFile.exists())
+      return;
+    LOG.debug("Parse last used times file " + myLastUsedTimesFile.getAbsolutePath());
+    synchronized (myLastUsedTimes) {
+      for (String line : readLines(myLastUsedTimesFile)) {
+        int separatorIndex = line.lastIndexOf(" = ");
+        if (separatorIndex == -1)
+          continue;
+        try {
+          myLastUsedTimes.put(line.substring(0, separatorIndex), Long.valueOf(line.substring(separatorIndex + 3)));
+        } catch (NumberFormatException e) {
+          LOG.warn("Cannot parse last used time '" + line + "', skip it.");
+        }
       }
     }
   }
@@ -236,21 +338,120 @@ public class MirrorManagerImpl implements MirrorManager {
 
   private void readMappings() {
     synchronized (myLock) {
-      for (String line : readLines(myMapFile)) {
+      List<String> lines = new ArrayList<String>();
+      boolean complete = readJournal(myMapFile, lines);
+      myMapFileRecords = 0;
+      for (String line : lines) {
         int separatorIndex = line.lastIndexOf(" = ");
         if (separatorIndex == -1) {
           if (!line.equals(""))
             LOG.warn("Cannot parse mapping '" + line + "', skip it.");
         } else {
+          myMapFileRecords++;
           String url = line.substring(0, separatorIndex);
           String dirName = line.substring(separatorIndex + 3);
-          if (myMirrorMap.values().contains(dirName)) {
+          if (myInvalidDirNames.contains(dirName))
+            continue;
+          String dirUrl = myDirToUrl.get(dirName);
+          if (dirUrl != null && !dirUrl.equals(url)) {
             LOG.error("Skip mapping " + line + ": " + dirName + " is used for url other than " + url);
           } else {
-            myMirrorMap.put(url, dirName);
+            addMapping(url, dirName);
           }
         }
       }
+      if (!complete || hasTooManyOutdatedRecords())
+        saveMappingToFile();
+    }
+  }
+
+
+  /**
+   * Reads lines of the journal file, the last line is skipped if it is incomplete
+   * (the process was stopped while appending it)
+   * @param file journal file
+   * @param lines collection for read lines
+   * @return false if journal ends with incomplete line and should be rewritten
+   */
+  private boolean readJournal(@NotNull final File file, @NotNull final List<String> lines) {
+    String text;
+    try {
+      text = readText(file);
+    } catch (IOException e) {
+      LOG.error("Error while reading file " + file.getAbsolutePath() + " assume it is empty", e);
+      return true;
+    }
+    if (text.length() == 0)
+      return true;
+    lines.addAll(Arrays.asList(text.split("\r?\n", -1)));
+    String last = lines.remove(lines.size() - 1);
+    if (last.length() == 0)
+      return true;
+    LOG.warn("Skip incomplete last line '" + last + "' in " + file.getAbsolutePath());
+    return false;
+  }
+
+
+  @NotNull
+  private String readText(@NotNull final File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return new String(bytes, GitUtils.UTF8);
+  }
+
+
+  private void appendLine(@NotNull final File file, @NotNull final String line) {
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(file, true), GitUtils.UTF8);
+      writer.write(line + "\n");
+    } catch (IOException e) {
+      LOG.error("Error while writing to " + file.getAbsolutePath(), e);
+    } finally {
+      close(writer);
+    }
+  }
+
+
+  /**
+   * Writes content to the temporary file and renames it to the specified file,
+   * so the file always contains either old or new content
+   */
+  private void writeFile(@NotNull final File file, @NotNull final String content) {
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(tmp), GitUtils.UTF8);
+      writer.write(content);
+      writer.close();
+      writer = null;
+      if (!tmp.renameTo(file)) {
+        FileUtil.delete(file);
+        if (!tmp.renameTo(file))
+          LOG.error("Cannot rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+      }
+    } catch (IOException e) {
+      LOG.error("Error while writing to " + file.getAbsolutePath(), e);
+    } finally {
+      close(writer);
+      if (tmp.exists())
+        FileUtil.delete(tmp);
+    }
+  }
+
+
+  private void close(@Nullable Closeable c) {
+    if (c == null)
+      return;
+    try {
+      c.close();
+    } catch (IOException e) {
+      //ignore
     }
   }
 
@@ -292,7 +493,9 @@ public class MirrorManagerImpl implements MirrorManager {
     synchronized (myLock) {
       LOG.info("Restore mapping from existing repositories");
       Map<String, String> restoredMappings = restoreMappings();
-      myMirrorMap.putAll(restoredMappings);
+      for (Map.Entry<String, String> mapping : restoredMappings.entrySet()) {
+        addMapping(mapping.getKey(), mapping.getValue());
+      }
       saveMappingToFile();
     }
   }
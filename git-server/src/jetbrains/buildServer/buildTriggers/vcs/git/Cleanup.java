@@ -47,6 +47,7 @@ public class Cleanup {
     LOG.debug("Cleanup started");
     removeUnusedRepositories();
     cleanupMonitoringData();
+    cleanupCommitChangesCache();
     if (myConfig.isRunNativeGC()) {
       runNativeGC();
     }
@@ -112,6 +113,21 @@ public class Cleanup {
     return ageHours > myConfig.getMonitoringExpirationTimeoutHours();
   }
 
+  private void cleanupCommitChangesCache() {
+    LOG.debug("Start cleaning commit changes cache");
+    CommitChangesCache cache = new CommitChangesCache(myConfig);
+    for (File repository : getAllRepositoryDirs()) {
+      Lock rmLock = myRepositoryManager.getRmLock(repository).readLock();
+      rmLock.lock();
+      try {
+        cache.removeExcessEntries(repository);
+      } finally {
+        rmLock.unlock();
+      }
+    }
+    LOG.debug("Finish cleaning commit changes cache");
+  }
+
   private void runNativeGC() {
     final long start = System.currentTimeMillis();
     final long gcTimeQuota = minutes2Milliseconds(myConfig.getNativeGCQuotaMinutes());
@@ -119,8 +135,12 @@ public class Cleanup {
     List<File> allDirs = getAllRepositoryDirs();
     int runGCCounter = 0;
     for (File gitDir : allDirs) {
-      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+      Lock writeLock = myRepositoryManager.getWriteLock(gitDir);
+      writeLock.lock();
+      try {
         runNativeGC(gitDir);
+      } finally {
+        writeLock.unlock();
       }
       runGCCounter++;
       final long repositoryFinish = System.currentTimeMillis();
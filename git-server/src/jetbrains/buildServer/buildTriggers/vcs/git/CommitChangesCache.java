@@ -0,0 +1,241 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.SubmodulesCheckoutPolicy.getPolicyWithErrorsIgnored;
+
+/**
+ * Persistent cache of changes computed for a commit. Changes of a commit
+ * depend only on the commit itself and on a submodules checkout policy,
+ * so once computed they can be reused by all roots sharing the mirror.
+ *
+ * Entries are stored inside the mirror dir, one file per commit:
+ * &lt;mirror&gt;/changes/&lt;policy&gt;/&lt;2 first chars of sha&gt;/&lt;rest of sha&gt;.
+ * The number of entries is bounded by {@link #removeExcessEntries(File)}
+ * which is called during cleanup.
+ */
+public class CommitChangesCache {
+
+  private static final Logger LOG = Logger.getInstance(CommitChangesCache.class.getName());
+  private static final String CACHE_DIR_NAME = "changes";
+  private static final int FORMAT_VERSION = 1;
+
+  private final ServerPluginConfig myConfig;
+
+  public CommitChangesCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  public boolean isEnabled() {
+    return myConfig.getCommitChangesCacheSize() > 0;
+  }
+
+
+  /**
+   * @return cached changes of the commit or null if there is no cached data
+   */
+  @Nullable
+  public List<VcsChange> getChanges(@NotNull File repositoryDir,
+                                    @NotNull String commitSHA,
+                                    @NotNull SubmodulesCheckoutPolicy policy) {
+    if (!isEnabled())
+      return null;
+    File entry = getEntryFile(repositoryDir, commitSHA, policy);
+    if (!entry.isFile())
+      return null;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+      List<VcsChange> changes = readChanges(in);
+      //noinspection ResultOfMethodCallIgnored
+      entry.setLastModified(System.currentTimeMillis());
+      return changes;
+    } catch (IOException e) {
+      LOG.warn("Error while reading cached changes of commit " + commitSHA + " from " + entry.getAbsolutePath() + ", remove the entry", e);
+      close(in);
+      in = null;
+      FileUtil.delete(entry);
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+
+  public void putChanges(@NotNull File repositoryDir,
+                         @NotNull String commitSHA,
+                         @NotNull SubmodulesCheckoutPolicy policy,
+                         @NotNull List<VcsChange> changes) {
+    if (!isEnabled())
+      return;
+    File entry = getEntryFile(repositoryDir, commitSHA, policy);
+    File dir = entry.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      LOG.warn("Cannot create dir " + dir.getAbsolutePath() + ", changes of commit " + commitSHA + " won't be cached");
+      return;
+    }
+    File tmp = new File(dir, entry.getName() + ".tmp" + Thread.currentThread().getId());
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      writeChanges(out, changes);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(entry) && !entry.isFile())
+        LOG.warn("Cannot save cached changes of commit " + commitSHA + " to " + entry.getAbsolutePath());
+    } catch (IOException e) {
+      LOG.warn("Error while caching changes of commit " + commitSHA + " in " + entry.getAbsolutePath(), e);
+    } finally {
+      close(out);
+      if (tmp.exists())
+        FileUtil.delete(tmp);
+    }
+  }
+
+
+  /**
+   * Removes the least recently used entries so that the number of
+   * entries in the repository cache doesn't exceed the configured size
+   * @param repositoryDir repository of interest
+   */
+  public void removeExcessEntries(@NotNull File repositoryDir) {
+    File cacheDir = new File(repositoryDir, CACHE_DIR_NAME);
+    if (!cacheDir.isDirectory())
+      return;
+    int maxSize = myConfig.getCommitChangesCacheSize();
+    if (maxSize <= 0) {
+      FileUtil.delete(cacheDir);
+      return;
+    }
+    List<File> entries = new ArrayList<File>();
+    collectEntries(cacheDir, entries);
+    if (entries.size() <= maxSize)
+      return;
+    final Map<File, Long> lastModified = new HashMap<File, Long>();
+    for (File entry : entries) {
+      lastModified.put(entry, entry.lastModified());
+    }
+    Collections.sort(entries, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long t1 = lastModified.get(f1);
+        long t2 = lastModified.get(f2);
+        return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+      }
+    });
+    int excess = entries.size() - maxSize;
+    LOG.debug("Remove " + excess + " cached commit changes in " + repositoryDir.getAbsolutePath());
+    for (File entry : entries.subList(0, excess)) {
+      FileUtil.delete(entry);
+    }
+  }
+
+
+  @NotNull
+  private File getEntryFile(@NotNull File repositoryDir, @NotNull String commitSHA, @NotNull SubmodulesCheckoutPolicy policy) {
+    //changes computed without submodule errors don't depend on whether errors are ignored
+    String policyDirName = getPolicyWithErrorsIgnored(policy, true).name();
+    File policyDir = new File(new File(repositoryDir, CACHE_DIR_NAME), policyDirName);
+    return new File(new File(policyDir, commitSHA.substring(0, 2)), commitSHA.substring(2));
+  }
+
+
+  private void collectEntries(@NotNull File dir, @NotNull List<File> entries) {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (File f : files) {
+      if (f.isDirectory()) {
+        collectEntries(f, entries);
+      } else {
+        entries.add(f);
+      }
+    }
+  }
+
+
+  private void writeChanges(@NotNull DataOutputStream out, @NotNull List<VcsChange> changes) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(changes.size());
+    for (VcsChange change : changes) {
+      out.writeUTF(change.getType().name());
+      writeNullableString(out, change.getChangeTypeName());
+      out.writeUTF(change.getFileName());
+      out.writeUTF(change.getRelativeFileName());
+      writeNullableString(out, change.getBeforeChangeRevisionNumber());
+      writeNullableString(out, change.getAfterChangeRevisionNumber());
+    }
+  }
+
+
+  @NotNull
+  private List<VcsChange> readChanges(@NotNull DataInputStream in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION)
+      throw new IOException("Unsupported format version " + version);
+    int size = in.readInt();
+    List<VcsChange> changes = new ArrayList<VcsChange>(size);
+    for (int i = 0; i < size; i++) {
+      VcsChange.Type type;
+      try {
+        type = VcsChange.Type.valueOf(in.readUTF());
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unknown change type: " + e.getMessage());
+      }
+      String description = readNullableString(in);
+      String fileName = in.readUTF();
+      String relativeFileName = in.readUTF();
+      String before = readNullableString(in);
+      String after = readNullableString(in);
+      changes.add(new VcsChange(type, description, fileName, relativeFileName, before, after));
+    }
+    return changes;
+  }
+
+
+  private void writeNullableString(@NotNull DataOutputStream out, @Nullable String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+
+  @Nullable
+  private String readNullableString(@NotNull DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+
+  private void close(@Nullable Closeable c) {
+    if (c == null)
+      return;
+    try {
+      c.close();
+    } catch (IOException e) {
+      //ignore
+    }
+  }
+}
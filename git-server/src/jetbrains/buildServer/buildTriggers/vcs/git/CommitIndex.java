@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact set of commit ids known to be present in a repository.
+ *
+ * Ids are stored as 5 ints each in a sorted array, so containment is
+ * checked by a binary search without creating objects. Added ids are kept
+ * in a small buffer which is merged into the array when it grows.
+ *
+ * ThreadSafe, lookups don't take locks.
+ */
+public final class CommitIndex {
+
+  private static final int ID_LENGTH = 5;
+  private static final int MAX_BUFFER_SIZE = 1024;
+
+  private volatile int[] myIds = new int[0];
+  private final Set<ObjectId> myBuffer = Collections.newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>());
+
+  public boolean contains(@NotNull AnyObjectId id) {
+    //check buffer first: merge publishes a new array before it removes ids from the buffer
+    return myBuffer.contains(id) || indexOf(myIds, id) >= 0;
+  }
+
+
+  public void add(@NotNull AnyObjectId id) {
+    if (contains(id))
+      return;
+    myBuffer.add(id.copy());
+    if (myBuffer.size() >= MAX_BUFFER_SIZE)
+      merge();
+  }
+
+
+  public void addAll(@NotNull Collection<? extends AnyObjectId> ids) {
+    for (AnyObjectId id : ids) {
+      if (!contains(id))
+        myBuffer.add(id.copy());
+    }
+    if (myBuffer.size() >= MAX_BUFFER_SIZE)
+      merge();
+  }
+
+
+  public int size() {
+    return myIds.length / ID_LENGTH + myBuffer.size();
+  }
+
+
+  private synchronized void merge() {
+    if (myBuffer.isEmpty())
+      return;
+    List<ObjectId> added = new ArrayList<ObjectId>(myBuffer);
+    Collections.sort(added);
+    int[] ids = myIds;
+    int[] merged = new int[ids.length + added.size() * ID_LENGTH];
+    int i = 0;
+    int length = 0;
+    for (ObjectId id : added) {
+      while (i < ids.length && id.compareTo(ids, i) > 0) {
+        System.arraycopy(ids, i, merged, length, ID_LENGTH);
+        i += ID_LENGTH;
+        length += ID_LENGTH;
+      }
+      if (i < ids.length && id.compareTo(ids, i) == 0)
+        continue;
+      id.copyRawTo(merged, length);
+      length += ID_LENGTH;
+    }
+    System.arraycopy(ids, i, merged, length, ids.length - i);
+    length += ids.length - i;
+    myIds = length == merged.length ? merged : Arrays.copyOf(merged, length);
+    myBuffer.removeAll(added);
+  }
+
+
+  private static int indexOf(@NotNull int[] ids, @NotNull AnyObjectId id) {
+    int low = 0;
+    int high = ids.length / ID_LENGTH - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = id.compareTo(ids, mid * ID_LENGTH);
+      if (cmp > 0) {
+        low = mid + 1;
+      } else if (cmp < 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.RefSpec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Merges concurrent fetches into the same repository.
+ *
+ * Fetches into a repository run one at a time. Requests arriving while
+ * a fetch is running are collected into the next batch: the first such request
+ * runs the batch with the refspecs of all requests after the running fetch
+ * is finished, other requests wait for the batch result. Requests never reuse
+ * the running fetch since it could be started before the required commits
+ * appeared in the remote repository. Requests with refspecs updating the same
+ * refs as refspecs of the next batch are not merged into it: jgit would update
+ * such ref twice in one fetch and the second update fails.
+ */
+public class FetchCoalescer {
+
+  private final Map<File, RepositoryFetches> myFetches = new HashMap<File, RepositoryFetches>();//guarded by this
+
+  /**
+   * Runs or joins the fetch into the repository
+   * @param repositoryDir repository dir
+   * @param key fetch url and authentication settings, only fetches with the same key are merged
+   * @param refspecs refspecs to fetch
+   * @param priority fetch priority
+   * @param fetch action running the fetch, receives refspecs and priority of the merged fetch
+   */
+  public void fetch(@NotNull File repositoryDir,
+                    @NotNull String key,
+                    @NotNull Collection<RefSpec> refspecs,
+                    @NotNull FetchScheduler.Priority priority,
+                    @NotNull Fetch fetch) throws NotSupportedException, VcsException, TransportException {
+    RepositoryFetches fetches;
+    Batch batch;
+    boolean owner = false;
+    synchronized (this) {
+      fetches = myFetches.get(repositoryDir);
+      if (fetches == null) {
+        fetches = new RepositoryFetches();
+        myFetches.put(repositoryDir, fetches);
+      }
+      batch = fetches.myPending;
+      if (batch == null || !batch.myKey.equals(key) || batch.overlaps(refspecs)) {
+        batch = new Batch(key);
+        //fetches with different settings or overlapping destinations cannot be merged, such batch runs separately
+        if (fetches.myPending == null)
+          fetches.myPending = batch;
+        owner = true;
+        fetches.myUsers++;
+      }
+      batch.add(refspecs, priority);
+    }
+    if (owner) {
+      runBatch(repositoryDir, fetches, batch, fetch);
+    }
+    batch.await();
+  }
+
+
+  private void runBatch(@NotNull File repositoryDir,
+                        @NotNull RepositoryFetches fetches,
+                        @NotNull Batch batch,
+                        @NotNull Fetch fetch) {
+    Collection<RefSpec> refspecs;
+    FetchScheduler.Priority priority;
+    try {
+      synchronized (this) {
+        while (fetches.myRunning) {
+          wait();
+        }
+        fetches.myRunning = true;
+        if (fetches.myPending == batch)
+          fetches.myPending = null;//new requests go to the next batch
+        refspecs = new ArrayList<RefSpec>(batch.myRefSpecs);
+        priority = batch.myPriority;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      synchronized (this) {
+        if (fetches.myPending == batch)
+          fetches.myPending = null;
+        release(repositoryDir, fetches, false);
+      }
+      batch.finish(new VcsException("Interrupted while waiting for fetch", e));
+      return;
+    }
+    Throwable error = null;
+    try {
+      fetch.fetch(refspecs, priority);
+    } catch (Throwable t) {
+      error = t;
+    } finally {
+      synchronized (this) {
+        release(repositoryDir, fetches, true);
+      }
+    }
+    batch.finish(error);
+  }
+
+
+  //should be called under lock
+  private void release(@NotNull File repositoryDir, @NotNull RepositoryFetches fetches, boolean wasRunning) {
+    if (wasRunning)
+      fetches.myRunning = false;
+    fetches.myUsers--;
+    if (fetches.myUsers == 0)
+      myFetches.remove(repositoryDir);
+    notifyAll();
+  }
+
+
+  public interface Fetch {
+    void fetch(@NotNull Collection<RefSpec> refspecs, @NotNull FetchScheduler.Priority priority) throws NotSupportedException, VcsException, TransportException;
+  }
+
+
+  private static final class RepositoryFetches {
+    private boolean myRunning;
+    private Batch myPending;
+    private int myUsers;//number of batches waiting or running
+  }
+
+
+  private static final class Batch {
+    private final String myKey;
+    private final Set<RefSpec> myRefSpecs = new LinkedHashSet<RefSpec>();//guarded by FetchCoalescer.this
+    private FetchScheduler.Priority myPriority = FetchScheduler.Priority.BACKGROUND;//guarded by FetchCoalescer.this
+    private final CountDownLatch myFinished = new CountDownLatch(1);
+    private volatile Throwable myError;
+
+    private Batch(@NotNull String key) {
+      myKey = key;
+    }
+
+    private void add(@NotNull Collection<RefSpec> refspecs, @NotNull FetchScheduler.Priority priority) {
+      myRefSpecs.addAll(refspecs);
+      if (priority.compareTo(myPriority) < 0)
+        myPriority = priority;
+    }
+
+    //should be called under lock
+    private boolean overlaps(@NotNull Collection<RefSpec> refspecs) {
+      for (RefSpec spec : refspecs) {
+        for (RefSpec batchSpec : myRefSpecs) {
+          if (overlaps(spec, batchSpec))
+            return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean overlaps(@NotNull RefSpec spec1, @NotNull RefSpec spec2) {
+      if (spec1.equals(spec2))
+        return false;//duplicates are merged
+      String dest1 = spec1.getDestination();
+      String dest2 = spec2.getDestination();
+      if (dest1 == null || dest2 == null)
+        return false;
+      if (spec1.isWildcard() && spec2.isWildcard()) {
+        String prefix1 = getWildcardPrefix(dest1);
+        String prefix2 = getWildcardPrefix(dest2);
+        return prefix1.startsWith(prefix2) || prefix2.startsWith(prefix1);
+      }
+      if (spec1.isWildcard())
+        return spec1.matchDestination(dest2);
+      if (spec2.isWildcard())
+        return spec2.matchDestination(dest1);
+      return dest1.equals(dest2);
+    }
+
+    @NotNull
+    private static String getWildcardPrefix(@NotNull String ref) {
+      return ref.substring(0, ref.indexOf('*'));
+    }
+
+    private void finish(@Nullable Throwable error) {
+      myError = error;
+      myFinished.countDown();
+    }
+
+    private void await() throws NotSupportedException, VcsException, TransportException {
+      try {
+        myFinished.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while waiting for fetch", e);
+      }
+      Throwable error = myError;
+      if (error == null)
+        return;
+      if (error instanceof VcsException)
+        throw (VcsException) error;
+      if (error instanceof NotSupportedException)
+        throw (NotSupportedException) error;
+      if (error instanceof TransportException)
+        throw (TransportException) error;
+      if (error instanceof RuntimeException)
+        throw (RuntimeException) error;
+      if (error instanceof Error)
+        throw (Error) error;
+      throw new VcsException(error);
+    }
+  }
+}
@@ -22,6 +22,8 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.log.Loggers;
@@ -42,6 +44,7 @@ import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
 * @author dmitry.neverov
@@ -54,6 +57,9 @@ public class FetchCommandImpl implements FetchCommand {
   private final ServerPluginConfig myConfig;
   private final TransportFactory myTransportFactory;
   private final FetcherProperties myFetcherProperties;
+  private final FetchWorkerPool myWorkers;
+  private final FetchMemoryManager myMemoryManager;
+  private final ConcurrentMap<File, FetchMetrics> myRunningFetches = new ConcurrentHashMap<File, FetchMetrics>();
 
   public FetchCommandImpl(@NotNull ServerPluginConfig config,
                           @NotNull TransportFactory transportFactory,
@@ -61,6 +67,8 @@ public class FetchCommandImpl implements FetchCommand {
     myConfig = config;
     myTransportFactory = transportFactory;
     myFetcherProperties = fetcherProperties;
+    myWorkers = new FetchWorkerPool(config, fetcherProperties);
+    myMemoryManager = new FetchMemoryManager(config);
   }
 
 
@@ -68,13 +76,26 @@ public class FetchCommandImpl implements FetchCommand {
                     @NotNull final Collection<RefSpec> refspecs, @NotNull final AuthSettings auth) throws NotSupportedException, VcsException, TransportException {
     unlockRefs(db);
     if (myConfig.isSeparateProcessForFetch()) {
-      fetchInSeparateProcess(db, auth, fetchURI, refspecs);
+      fetchInSeparateProcessWithRetry(db, auth, fetchURI, refspecs);
+      GitServerUtil.openNewPacks(db);
     } else {
       fetchInSameProcess(db, auth, fetchURI, refspecs);
     }
   }
 
 
+  /**
+   * Returns metrics of fetches running in separate processes, see {@link RunningFetches}.
+   * Only fetch in a worker process reports progress while it is running, metrics of
+   * the fetch in a one-time process are available only after the process is finished.
+   * @return map of repository dir -> fetch metrics
+   */
+  @NotNull
+  public Map<File, FetchMetrics> getRunningFetches() {
+    return new HashMap<File, FetchMetrics>(myRunningFetches);
+  }
+
+
   private void unlockRefs(Repository db) throws VcsException{
     try {
       Map<String, Ref> refMap = db.getRefDatabase().getRefs(org.eclipse.jgit.lib.Constants.R_HEADS);
@@ -111,14 +132,58 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
+  /**
+   * Runs fetch in a separate process, retries it with more memory after OutOfMemoryError
+   */
+  private void fetchInSeparateProcessWithRetry(@NotNull final Repository repository, @NotNull final AuthSettings settings,
+                                               @NotNull final URIish uri, @NotNull final Collection<RefSpec> specs) throws VcsException {
+    String memory = myMemoryManager.getMaxMemory(repository);
+    boolean escalated = false;
+    while (true) {
+      final String fetchMemory = memory;
+      FetchMetrics metrics = new FetchMetrics();
+      myMemoryManager.acquire(fetchMemory);
+      myRunningFetches.put(repository.getDirectory(), metrics);
+      try {
+        if (myWorkers.isEnabled()) {
+          fetchInWorkerProcess(repository, settings, uri, specs, fetchMemory, metrics);
+        } else {
+          fetchInSeparateProcess(repository, settings, uri, specs, fetchMemory, metrics);
+        }
+        myMemoryManager.fetchSucceeded(repository, fetchMemory, escalated, metrics.getPeakHeap());
+        return;
+      } catch (FetchOutOfMemoryException e) {
+        memory = myMemoryManager.getEscalatedMemory(fetchMemory);
+        if (memory == null) {
+          LOG.warn("There is not enough memory for git fetch, -Xmx" + fetchMemory + " was used. Try to increase teamcity.git.fetch.process.max.memory " +
+                   "or teamcity.git.fetch.process.max.memory.limit.mb properties.");
+          throw e;
+        }
+        LOG.warn("There is not enough memory for git fetch" + getDebugInfo(repository, uri, specs) + " with -Xmx" + fetchMemory + ", retry with -Xmx" + memory);
+        escalated = true;
+      } finally {
+        myRunningFetches.remove(repository.getDirectory(), metrics);
+        myMemoryManager.release(fetchMemory);
+      }
+    }
+  }
+
+
+  /**
+   * SimpleCommandLineProcessRunner returns output only when the process exits, so progress
+   * of the one-time fetch process is parsed after it is finished and a stalled fetch is
+   * detected by the output idle timeout. Live progress and stall detection by progress
+   * are available only for fetch in a worker process.
+   */
   private void fetchInSeparateProcess(@NotNull final Repository repository, @NotNull final AuthSettings settings,
-                                      @NotNull final URIish uri, @NotNull final Collection<RefSpec> specs) throws VcsException {
+                                      @NotNull final URIish uri, @NotNull final Collection<RefSpec> specs,
+                                      @NotNull final String memory, @NotNull final FetchMetrics metrics) throws VcsException {
     final long fetchStart = System.currentTimeMillis();
     final String debugInfo = getDebugInfo(repository, uri, specs);
 
     File gitPropertiesFile = null;
     try {
-      GeneralCommandLine cl = createFetcherCommandLine(repository, uri);
+      GeneralCommandLine cl = createFetcherCommandLine(repository, uri, memory);
       if (LOG.isDebugEnabled())
         LOG.debug("Start fetch process for " + debugInfo);
 
@@ -127,17 +192,18 @@ public class FetchCommandImpl implements FetchCommand {
       FetcherEventHandler processEventHandler = new FetcherEventHandler(debugInfo);
       byte[] fetchProcessInput = getFetchProcessInputBytes(settings, repository.getDirectory(), uri, specs, threadDump, gitPropertiesFile);
       ExecResult result = SimpleCommandLineProcessRunner.runCommand(cl, fetchProcessInput, processEventHandler);
+      readProgress(result.getStdout(), metrics);
 
       if (PERFORMANCE_LOG.isDebugEnabled())
-        PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
+        PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms, " + metrics);
 
       VcsException commandError = CommandLineUtil.getCommandLineError("git fetch", result);
       if (commandError != null) {
-        if (isOutOfMemoryError(result))
-          LOG.warn("There is not enough memory for git fetch, teamcity.git.fetch.process.max.memory=" + myConfig.getFetchProcessMaxMemory() + ", try to increase it.");
         if (isTimeout(result))
           logTimeout(debugInfo, threadDump);
         clean(repository);
+        if (isOutOfMemoryError(result))
+          throw new FetchOutOfMemoryException(commandError.getMessage());
         throw commandError;
       }
       if (result.getStderr().length() > 0) {
@@ -150,10 +216,55 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
+  private void readProgress(@NotNull String fetchProcessOutput, @NotNull FetchMetrics metrics) {
+    for (String line : fetchProcessOutput.split("\n")) {
+      FetchProgress progress = FetchProgress.parse(line);
+      if (progress != null)
+        metrics.onProgress(progress);
+    }
+  }
+
+  private void fetchInWorkerProcess(@NotNull final Repository repository, @NotNull final AuthSettings settings,
+                                    @NotNull final URIish uri, @NotNull final Collection<RefSpec> specs,
+                                    @NotNull final String memory, @NotNull final FetchMetrics metrics) throws VcsException {
+    final long fetchStart = System.currentTimeMillis();
+    final String debugInfo = getDebugInfo(repository, uri, specs);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Fetch in worker process for " + debugInfo);
+
+    File threadDump = getThreadDumpFile(repository);
+    byte[] request = getFetchProcessInputBytes(settings, repository.getDirectory(), uri, specs, threadDump, null);
+    FetchWorkerPool.Result result = myWorkers.fetch(request, memory, metrics);
+
+    if (PERFORMANCE_LOG.isDebugEnabled())
+      PERFORMANCE_LOG.debug("[fetch in worker process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms, " + metrics);
+
+    if (!result.isSuccessful()) {
+      if (result.isTimeout())
+        logTimeout(debugInfo, threadDump);
+      clean(repository);
+      String error = result.getError().trim();
+      String message = "'git fetch' command failed." +
+                       (error.length() > 0 ? "\nstderr: " + error : "") +
+                       (result.isTimeout() ? "\nexception: Timeout exception" : "");
+      if (result.isOutOfMemory())
+        throw new FetchOutOfMemoryException(message);
+      throw new VcsException(message);
+    }
+  }
+
+
+  /**
+   * Stops idle fetch worker processes
+   */
+  public void stopFetchWorkers() {
+    myWorkers.stopIdleWorkers();
+  }
+
   private void logTimeout(@NotNull String debugInfo, @NotNull File threadDump) {
     StringBuilder message = new StringBuilder();
     message.append("Fetch in root ").append(debugInfo)
-      .append(" took more than ")
+      .append(" made no progress for ")
       .append(myConfig.getFetchTimeout())
       .append(" second(s), try increase timeout using teamcity.git.fetch.timeout property.");
     if (threadDump.exists())
@@ -172,12 +283,12 @@ public class FetchCommandImpl implements FetchCommand {
     return new File(repository.getDirectory(), myConfig.getMonitoringDirName());
   }
 
-  private GeneralCommandLine createFetcherCommandLine(@NotNull final Repository repository, @NotNull final URIish uri) {
+  private GeneralCommandLine createFetcherCommandLine(@NotNull final Repository repository, @NotNull final URIish uri, @NotNull final String memory) {
     GeneralCommandLine cl = new GeneralCommandLine();
     cl.setWorkingDirectory(repository.getDirectory());
     cl.setExePath(myConfig.getFetchProcessJavaPath());
     cl.addParameters(myConfig.getProxySettingsForSeparateProcess());
-    cl.addParameters("-Xmx" + myConfig.getFetchProcessMaxMemory(),
+    cl.addParameters("-Xmx" + memory,
                      "-cp", myConfig.getFetchClasspath(),
                      myConfig.getFetcherClassName(),
                      uri.toString());//last parameter is not used in Fetcher, but is useful to distinguish fetch processes
@@ -247,6 +358,13 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
+  private static class FetchOutOfMemoryException extends VcsException {
+    private FetchOutOfMemoryException(@NotNull String message) {
+      super(message);
+    }
+  }
+
+
   private class FetcherEventHandler implements SimpleCommandLineProcessRunner.ProcessRunCallback {
     private final String myRepositoryDebugInfo;
 
@@ -278,7 +396,7 @@ public class FetchCommandImpl implements FetchCommand {
                                            @NotNull URIish uri,
                                            @NotNull Collection<RefSpec> specs,
                                            @NotNull File threadDump,
-                                           @NotNull File gitProperties) throws VcsException {
+                                           @Nullable File gitProperties) throws VcsException {
     try {
       Map<String, String> properties = new HashMap<String, String>(authSettings.toMap());
       properties.put(Constants.REPOSITORY_DIR_PROPERTY_NAME, repositoryDir.getCanonicalPath());
@@ -286,7 +404,8 @@ public class FetchCommandImpl implements FetchCommand {
       properties.put(Constants.REFSPEC, serializeSpecs(specs));
       properties.put(Constants.VCS_DEBUG_ENABLED, String.valueOf(Loggers.VCS.isDebugEnabled()));
       properties.put(Constants.THREAD_DUMP_FILE, threadDump.getAbsolutePath());
-      properties.put(Constants.FETCHER_INTERNAL_PROPERTIES_FILE, gitProperties.getAbsolutePath());
+      if (gitProperties != null)
+        properties.put(Constants.FETCHER_INTERNAL_PROPERTIES_FILE, gitProperties.getAbsolutePath());
       return VcsUtil.propertiesToStringSecure(properties).getBytes("UTF-8");
     } catch (IOException e) {
       throw new VcsException("Error while generating fetch process input", e);
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Chooses -Xmx for fetch processes.
+ *
+ * Fetch into a repository gets {@link ServerPluginConfig#getFetchProcessMaxMemory()}
+ * or the memory learned from the previous fetches into this repository, whichever is
+ * bigger. Learned memory is stored in the repository config, so it survives server
+ * restarts. It is updated after successful fetch using the live heap reported by the
+ * fetch process or the memory of the successful retry after OutOfMemoryError.
+ * Memory is escalated up to {@link ServerPluginConfig#getFetchProcessMaxMemoryLimitMb()}.
+ *
+ * Total -Xmx of running fetches is limited by {@link ServerPluginConfig#getFetchProcessMemoryBudgetMb()},
+ * fetch waits until other fetches release enough memory.
+ */
+public class FetchMemoryManager {
+
+  private static final Logger LOG = Logger.getInstance(FetchMemoryManager.class.getName());
+  private static final String CONFIG_SECTION = "teamcity";
+  private static final String CONFIG_FETCH_MEMORY = "fetchMemoryMb";
+  private static final int ESCALATION_FACTOR = 2;
+  private static final long MB = 1024 * 1024;
+
+  private final ServerPluginConfig myConfig;
+  private long myUsedMb;//guarded by this
+
+  public FetchMemoryManager(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * @param db repository
+   * @return -Xmx for the fetch into the specified repository
+   */
+  @NotNull
+  public String getMaxMemory(@NotNull Repository db) {
+    String configured = myConfig.getFetchProcessMaxMemory();
+    long configuredMb = parseMb(configured);
+    if (configuredMb <= 0)
+      return configured;
+    long learnedMb = getLearnedMb(db);
+    if (learnedMb <= configuredMb)
+      return configured;
+    return formatMb(Math.min(learnedMb, getLimitMb()));
+  }
+
+
+  /**
+   * @param memory -Xmx of the fetch failed with OutOfMemoryError
+   * @return -Xmx for the retry or null if memory cannot be increased
+   */
+  @Nullable
+  public String getEscalatedMemory(@NotNull String memory) {
+    long mb = parseMb(memory);
+    if (mb <= 0)
+      return null;
+    long escalated = Math.min(mb * ESCALATION_FACTOR, getLimitMb());
+    return escalated > mb ? formatMb(escalated) : null;
+  }
+
+
+  /**
+   * Remembers the memory required for fetch into the repository
+   * @param db repository
+   * @param memory -Xmx of the successful fetch
+   * @param escalated true if fetch succeeded after retry with escalated memory
+   * @param peakHeap peak live heap reported by the fetch process, 0 if unknown
+   */
+  public void fetchSucceeded(@NotNull Repository db, @NotNull String memory, boolean escalated, long peakHeap) {
+    long configuredMb = parseMb(myConfig.getFetchProcessMaxMemory());
+    if (configuredMb <= 0)
+      return;
+    //double the live heap to leave room for garbage
+    long requiredMb = (peakHeap * ESCALATION_FACTOR + MB - 1) / MB;
+    if (escalated)
+      requiredMb = Math.max(requiredMb, parseMb(memory));
+    long learnedMb = getLearnedMb(db);
+    if (requiredMb <= learnedMb || requiredMb <= configuredMb)
+      return;
+    requiredMb = Math.min(requiredMb, getLimitMb());
+    StoredConfig config = db.getConfig();
+    config.setLong(CONFIG_SECTION, null, CONFIG_FETCH_MEMORY, requiredMb);
+    try {
+      config.save();
+      LOG.info("Fetch into " + db.getDirectory() + " requires " + requiredMb + "M of memory");
+    } catch (IOException e) {
+      LOG.warn("Cannot save fetch memory in repository " + db.getDirectory(), e);
+    }
+  }
+
+
+  /**
+   * Waits until the budget allows to start a fetch process with the specified -Xmx
+   * @param memory -Xmx of the fetch process
+   * @throws VcsException if thread is interrupted
+   */
+  public void acquire(@NotNull String memory) throws VcsException {
+    long mb = getBudgetMb(memory);
+    if (mb <= 0)
+      return;
+    synchronized (this) {
+      try {
+        while (myUsedMb > 0 && myUsedMb + mb > myConfig.getFetchProcessMemoryBudgetMb()) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while waiting for memory for the fetch process", e);
+      }
+      myUsedMb += mb;
+    }
+  }
+
+
+  public void release(@NotNull String memory) {
+    long mb = getBudgetMb(memory);
+    if (mb <= 0)
+      return;
+    synchronized (this) {
+      myUsedMb = Math.max(0, myUsedMb - mb);
+      notifyAll();
+    }
+  }
+
+
+  private long getBudgetMb(@NotNull String memory) {
+    if (myConfig.getFetchProcessMemoryBudgetMb() <= 0)
+      return 0;
+    return Math.max(parseMb(memory), 0);
+  }
+
+
+  private long getLearnedMb(@NotNull Repository db) {
+    return db.getConfig().getLong(CONFIG_SECTION, null, CONFIG_FETCH_MEMORY, 0);
+  }
+
+
+  private long getLimitMb() {
+    return Math.max(myConfig.getFetchProcessMaxMemoryLimitMb(), parseMb(myConfig.getFetchProcessMaxMemory()));
+  }
+
+
+  /**
+   * @param memory memory in the -Xmx format, e.g. 512M or 1g
+   * @return memory in megabytes or -1 if memory cannot be parsed
+   */
+  static long parseMb(@NotNull String memory) {
+    String m = memory.trim();
+    if (m.length() == 0)
+      return -1;
+    char unit = Character.toLowerCase(m.charAt(m.length() - 1));
+    long multiplier;
+    switch (unit) {
+      case 'k': multiplier = 1024; break;
+      case 'm': multiplier = MB; break;
+      case 'g': multiplier = 1024 * MB; break;
+      default: multiplier = 1;
+    }
+    if (multiplier != 1)
+      m = m.substring(0, m.length() - 1);
+    try {
+      return Long.parseLong(m) * multiplier / MB;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+
+  @NotNull
+  private static String formatMb(long mb) {
+    return mb + "M";
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metrics of a single fetch collected from the progress reported by the fetch process
+ */
+public class FetchMetrics implements FetchProgressListener {
+
+  private final long myStartTime = System.currentTimeMillis();
+  private final Map<String, FetchProgress> myFinishedPhases = new LinkedHashMap<String, FetchProgress>();//guarded by this
+  private FetchProgress myLastProgress;//guarded by this
+  private long myLastAdvanceTime = myStartTime;//guarded by this
+  private long myBytes;//guarded by this
+  private long myPeakHeap;//guarded by this
+
+  public synchronized void onProgress(@NotNull FetchProgress progress) {
+    if (progress.isAdvancedSince(myLastProgress))
+      myLastAdvanceTime = System.currentTimeMillis();
+    myLastProgress = progress;
+    myBytes = Math.max(myBytes, progress.getBytes());
+    myPeakHeap = Math.max(myPeakHeap, progress.getPeakHeap());
+    if (progress.isPhaseFinished())
+      myFinishedPhases.put(progress.getPhase(), progress);
+  }
+
+  /**
+   * @return the last reported progress or null if fetch didn't report progress yet
+   */
+  @Nullable
+  public synchronized FetchProgress getLastProgress() {
+    return myLastProgress;
+  }
+
+  /**
+   * @return time in milliseconds when fetch made progress last time,
+   * fetch start time if there was no progress yet
+   */
+  public synchronized long getLastAdvanceTime() {
+    return myLastAdvanceTime;
+  }
+
+  /**
+   * @return number of bytes of received packs
+   */
+  public synchronized long getBytes() {
+    return myBytes;
+  }
+
+  /**
+   * @return peak heap usage after gc in the fetch process in bytes, 0 if unknown
+   */
+  public synchronized long getPeakHeap() {
+    return myPeakHeap;
+  }
+
+  /**
+   * @return number of objects received by fetch, 0 if fetch didn't receive objects yet
+   */
+  public synchronized int getReceivedObjects() {
+    FetchProgress receiving = myFinishedPhases.get("Receiving objects");
+    if (receiving != null)
+      return receiving.getCompleted();
+    if (myLastProgress != null && "Receiving objects".equals(myLastProgress.getPhase()))
+      return myLastProgress.getCompleted();
+    return 0;
+  }
+
+  public long getStartTime() {
+    return myStartTime;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("objects: ").append(getReceivedObjects()).append(", bytes: ").append(myBytes).append(", peak heap: ").append(myPeakHeap);
+    for (FetchProgress phase : myFinishedPhases.values()) {
+      sb.append(", ").append(phase.getPhase()).append(": ").append(phase.getPhaseMillis()).append("ms");
+    }
+    if (myLastProgress != null && !myLastProgress.isPhaseFinished())
+      sb.append(", in progress: ").append(myLastProgress);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Progress of a fetch phase reported by the fetch process. Fetch process
+ * writes progress as lines in the format produced by {@link #format()}.
+ */
+public final class FetchProgress {
+
+  private static final String PREFIX = "##fetch-progress\t";
+
+  private final String myPhase;
+  private final int myCompleted;
+  private final int myTotal;
+  private final long myBytes;
+  private final long myPhaseMillis;
+  private final boolean myPhaseFinished;
+  private final long myPeakHeap;
+
+  /**
+   * @param phase name of the phase, e.g. 'Receiving objects' or 'Resolving deltas'
+   * @param completed number of completed units of work in the phase
+   * @param total total units of work in the phase, 0 if unknown
+   * @param bytes number of bytes of packs received so far
+   * @param phaseMillis time spent in the phase
+   * @param phaseFinished true if phase is finished
+   * @param peakHeap peak heap usage after gc in the fetch process in bytes, 0 if unknown
+   */
+  public FetchProgress(@NotNull String phase, int completed, int total, long bytes, long phaseMillis, boolean phaseFinished, long peakHeap) {
+    myPhase = phase;
+    myCompleted = completed;
+    myTotal = total;
+    myBytes = bytes;
+    myPhaseMillis = phaseMillis;
+    myPhaseFinished = phaseFinished;
+    myPeakHeap = peakHeap;
+  }
+
+  @NotNull
+  public String getPhase() {
+    return myPhase;
+  }
+
+  public int getCompleted() {
+    return myCompleted;
+  }
+
+  public int getTotal() {
+    return myTotal;
+  }
+
+  public long getBytes() {
+    return myBytes;
+  }
+
+  public long getPhaseMillis() {
+    return myPhaseMillis;
+  }
+
+  public boolean isPhaseFinished() {
+    return myPhaseFinished;
+  }
+
+  public long getPeakHeap() {
+    return myPeakHeap;
+  }
+
+  /**
+   * @param previous previous progress of the same fetch
+   * @return true if fetch made some progress since the previous report
+   */
+  public boolean isAdvancedSince(@Nullable FetchProgress previous) {
+    return previous == null ||
+           !myPhase.equals(previous.myPhase) ||
+           myCompleted != previous.myCompleted ||
+           myBytes != previous.myBytes ||
+           myPhaseFinished != previous.myPhaseFinished;
+  }
+
+  @NotNull
+  public String format() {
+    return PREFIX + myPhase.replace('\t', ' ') + "\t" + myCompleted + "\t" + myTotal + "\t" + myBytes + "\t" + myPhaseMillis + "\t" + myPhaseFinished + "\t" + myPeakHeap;
+  }
+
+  /**
+   * @param line line of fetch process output
+   * @return progress reported in the line or null if line doesn't contain progress
+   */
+  @Nullable
+  public static FetchProgress parse(@NotNull String line) {
+    if (!line.startsWith(PREFIX))
+      return null;
+    String[] fields = line.substring(PREFIX.length()).trim().split("\t");
+    if (fields.length != 7)
+      return null;
+    try {
+      return new FetchProgress(fields[0],
+                               Integer.parseInt(fields[1]),
+                               Integer.parseInt(fields[2]),
+                               Long.parseLong(fields[3]),
+                               Long.parseLong(fields[4]),
+                               Boolean.parseBoolean(fields[5]),
+                               Long.parseLong(fields[6]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(myPhase).append(": ").append(myCompleted);
+    if (myTotal > 0)
+      sb.append("/").append(myTotal);
+    sb.append(", ").append(myBytes).append(" bytes, ").append(myPhaseMillis).append("ms");
+    return sb.toString();
+  }
+}
@@ -18,16 +18,35 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 
 /**
- * Exactly the same as {@link org.eclipse.jgit.lib.TextProgressMonitor}, but writes to the given PrintStream and System.out
+ * Exactly the same as {@link org.eclipse.jgit.lib.TextProgressMonitor}, but writes to the given PrintStream.
+ * Also reports progress to the given listener, see {@link FetchProgress}.
  * @author dmitry.neverov
  */
 public class FetchProgressMonitor implements ProgressMonitor {
 
+  private static final long MIN_REPORT_INTERVAL_MILLIS = 100;
+
   private final PrintStream myPrintStream;
+  private final File myObjectsDir;
+  private final FetchProgressListener myListener;
+
+  private long myPhaseBeganAt;
+
+  private long myLastReportAt;
+
+  private long myBytes;
+
+  private long myPeakHeap;
 
   private boolean output;
 
@@ -39,10 +58,17 @@ public class FetchProgressMonitor implements ProgressMonitor {
 
   private int totalWork;
 
-  /** Initialize a new progress monitor. */
-  public FetchProgressMonitor(@NotNull PrintStream output) {
+  /**
+   * Initialize a new progress monitor.
+   * @param output stream for human-readable progress
+   * @param objectsDir objects dir of the repository, used to report the size of received packs
+   * @param listener progress listener
+   */
+  public FetchProgressMonitor(@NotNull PrintStream output, @Nullable File objectsDir, @NotNull FetchProgressListener listener) {
     taskBeganAt = System.currentTimeMillis();
     myPrintStream = output;
+    myObjectsDir = objectsDir;
+    myListener = listener;
   }
 
   public void start(final int totalTasks) {
@@ -55,6 +81,8 @@ public class FetchProgressMonitor implements ProgressMonitor {
     msg = title;
     lastWorked = 0;
     totalWork = total;
+    myPhaseBeganAt = System.currentTimeMillis();
+    report(0, false);
   }
 
   public void update(final int completed) {
@@ -67,12 +95,13 @@ public class FetchProgressMonitor implements ProgressMonitor {
     if (totalWork == UNKNOWN) {
       display(cmp);
       myPrintStream.flush();
-      System.out.flush();
+      if (System.currentTimeMillis() - myLastReportAt >= MIN_REPORT_INTERVAL_MILLIS)
+        report(cmp, false);
     } else {
       if ((cmp * 100 / totalWork) != (lastWorked * 100) / totalWork) {
         display(cmp);
         myPrintStream.flush();
-        System.out.flush();
+        report(cmp, false);
       }
     }
     lastWorked = cmp;
@@ -108,7 +137,42 @@ public class FetchProgressMonitor implements ProgressMonitor {
     }
 
     myPrintStream.println(m);
-    System.out.println(m);
+  }
+
+  private void report(int completed, boolean phaseFinished) {
+    long now = System.currentTimeMillis();
+    myLastReportAt = now;
+    myBytes = Math.max(myBytes, getIncomingPacksSize());
+    myPeakHeap = Math.max(myPeakHeap, getLiveHeapUsage());
+    myListener.onProgress(new FetchProgress(msg, completed, totalWork, myBytes, now - myPhaseBeganAt, phaseFinished, myPeakHeap));
+  }
+
+  //heap usage after the last gc, used heap right before gc can be close to -Xmx and doesn't show how much memory fetch needs
+  private static long getLiveHeapUsage() {
+    long result = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        MemoryUsage usage = pool.getCollectionUsage();
+        if (usage != null)
+          result += usage.getUsed();
+      }
+    }
+    return result;
+  }
+
+  //jgit writes received pack into the incoming_xxx.pack file in the objects dir
+  private long getIncomingPacksSize() {
+    if (myObjectsDir == null)
+      return 0;
+    File[] files = myObjectsDir.listFiles();
+    if (files == null)
+      return 0;
+    long size = 0;
+    for (File f : files) {
+      if (f.getName().startsWith("incoming_") && f.getName().endsWith(".pack"))
+        size += f.length();
+    }
+    return size;
   }
 
   public boolean isCancelled() {
@@ -116,11 +180,12 @@ public class FetchProgressMonitor implements ProgressMonitor {
   }
 
   public void endTask() {
+    if (msg != null)
+      report(totalWork != UNKNOWN ? totalWork : lastWorked, true);
     if (output) {
       if (totalWork != UNKNOWN)
         display(totalWork);
       myPrintStream.println();
-      System.out.println();
     }
     output = false;
     msg = null;
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Limits the number of concurrent fetches: total number is limited by
+ * {@link ServerPluginConfig#getFetchConcurrencyLimit()}, number of fetches from
+ * the same host - by {@link ServerPluginConfig#getFetchConcurrencyLimitPerHost()}.
+ *
+ * Waiting fetches are started in order of their priority, fetches with the
+ * same priority are started in order of arrival. Fetch waiting for a busy host
+ * doesn't block fetches from other hosts.
+ */
+public class FetchScheduler {
+
+  public enum Priority {
+    /** Fetch blocks a build, e.g. fetch of a commit required for a patch */
+    BUILD,
+    /** Fetch during changes collecting and other background operations */
+    BACKGROUND
+  }
+
+  private final ServerPluginConfig myConfig;
+  private final TreeSet<Ticket> myQueue = new TreeSet<Ticket>();//guarded by this
+  private final Map<String, Integer> myRunningPerHost = new HashMap<String, Integer>();//guarded by this
+  private int myRunning;//guarded by this
+  private long mySequence;//guarded by this
+  private long myStartedCount;//guarded by this
+  private long myTotalWaitMillis;//guarded by this
+  private long myMaxWaitMillis;//guarded by this
+
+  public FetchScheduler(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * Waits until fetch from the host can be started, {@link #release(Ticket)}
+   * should be called after the fetch
+   * @param host host to fetch from
+   * @param priority fetch priority
+   * @return ticket of the started fetch
+   * @throws VcsException if thread is interrupted
+   */
+  @NotNull
+  public Ticket acquire(@NotNull String host, @NotNull Priority priority) throws VcsException {
+    synchronized (this) {
+      Ticket ticket = new Ticket(host, priority, mySequence++);
+      myQueue.add(ticket);
+      try {
+        while (!canStart(ticket)) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        myQueue.remove(ticket);
+        notifyAll();
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while waiting for fetch from " + host, e);
+      }
+      myQueue.remove(ticket);
+      myRunning++;
+      myRunningPerHost.put(host, getRunning(host) + 1);
+      long waitMillis = System.currentTimeMillis() - ticket.myCreateTime;
+      myStartedCount++;
+      myTotalWaitMillis += waitMillis;
+      myMaxWaitMillis = Math.max(myMaxWaitMillis, waitMillis);
+      ticket.myWaitMillis = waitMillis;
+      //other fetches could be waiting for this one because of the order in the queue
+      notifyAll();
+      return ticket;
+    }
+  }
+
+
+  public synchronized void release(@NotNull Ticket ticket) {
+    myRunning--;
+    int running = getRunning(ticket.myHost) - 1;
+    if (running > 0) {
+      myRunningPerHost.put(ticket.myHost, running);
+    } else {
+      myRunningPerHost.remove(ticket.myHost);
+    }
+    notifyAll();
+  }
+
+
+  /**
+   * @return number of fetches waiting to be started
+   */
+  public synchronized int getQueueSize() {
+    return myQueue.size();
+  }
+
+
+  public synchronized int getRunningCount() {
+    return myRunning;
+  }
+
+
+  public synchronized long getAverageWaitMillis() {
+    return myStartedCount > 0 ? myTotalWaitMillis / myStartedCount : 0;
+  }
+
+
+  public synchronized long getMaxWaitMillis() {
+    return myMaxWaitMillis;
+  }
+
+
+  //should be called under lock
+  private boolean canStart(@NotNull Ticket ticket) {
+    int limit = myConfig.getFetchConcurrencyLimit();
+    if (limit > 0 && myRunning >= limit)
+      return false;
+    for (Ticket t : myQueue) {
+      if (t == ticket)
+        return isHostAvailable(ticket.myHost);
+      if (isHostAvailable(t.myHost))
+        return false;//fetch ahead of us can start, let it go first
+    }
+    return false;
+  }
+
+
+  private boolean isHostAvailable(@NotNull String host) {
+    int limit = myConfig.getFetchConcurrencyLimitPerHost();
+    return limit <= 0 || getRunning(host) < limit;
+  }
+
+
+  private int getRunning(@NotNull String host) {
+    Integer running = myRunningPerHost.get(host);
+    return running != null ? running : 0;
+  }
+
+
+  public static final class Ticket implements Comparable<Ticket> {
+    private final String myHost;
+    private final Priority myPriority;
+    private final long mySequence;
+    private final long myCreateTime = System.currentTimeMillis();
+    private long myWaitMillis;
+
+    private Ticket(@NotNull String host, @NotNull Priority priority, long sequence) {
+      myHost = host;
+      myPriority = priority;
+      mySequence = sequence;
+    }
+
+    /**
+     * @return time the fetch waited before start
+     */
+    public long getWaitMillis() {
+      return myWaitMillis;
+    }
+
+    public int compareTo(@NotNull Ticket other) {
+      int result = myPriority.compareTo(other.myPriority);
+      if (result != 0)
+        return result;
+      return mySequence < other.mySequence ? -1 : (mySequence == other.mySequence ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Method main of this class is run in a long-living separate process which
+ * performs fetches requested by the server one after another, see {@link FetchWorkerPool}.
+ *
+ * The only program argument is a path to a file with internal properties.
+ * Requests and responses are read from stdin and written to stdout:
+ * request is an int length followed by the UTF-8 encoded fetch properties (the same
+ * as {@link Fetcher} reads from stdin). While fetch is running worker writes
+ * {@link #PROGRESS} messages with the formatted {@link FetchProgress}, the fetch is
+ * finished by the {@link #RESULT} message with a boolean success flag, an int length
+ * and the UTF-8 encoded error output of the fetch.
+ * The process exits when stdin is closed or after OutOfMemoryError.
+ */
+public class FetchWorker {
+
+  static final byte PROGRESS = 1;
+  static final byte RESULT = 2;
+
+  public static void main(String[] args) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);//stdout is used for responses only
+
+    Fetcher.setInternalProperties(args[0]);
+    Fetcher.configureStreamFileThreshold();
+    ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
+    try {
+      byte[] request;
+      while ((request = readRequest(in)) != null) {
+        Map<String, String> properties = VcsUtil.stringToProperties(new String(request, "UTF-8"));
+        boolean debug = "true".equals(properties.get(Constants.VCS_DEBUG_ENABLED));
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        boolean success = true;
+        boolean outOfMemory = false;
+        try {
+          Fetcher.fetch(properties, exec, new FetchProgressListener() {
+            public void onProgress(@NotNull FetchProgress progress) {
+              try {
+                writeProgress(out, progress);
+              } catch (IOException e) {
+                //server is gone, worker will exit after the fetch
+              }
+            }
+          });
+        } catch (Throwable t) {
+          success = false;
+          outOfMemory = t instanceof OutOfMemoryError;
+          PrintStream errorStream = new PrintStream(error, true, "UTF-8");
+          Fetcher.printError(t, debug, errorStream);
+          errorStream.close();
+        }
+        writeResponse(out, success, error.toByteArray());
+        if (outOfMemory)
+          System.exit(1);//heap can be in inconsistent state, let the server start a new worker
+      }
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+
+  private static byte[] readRequest(@NotNull DataInputStream in) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    byte[] request = new byte[length];
+    in.readFully(request);
+    return request;
+  }
+
+
+  private static void writeProgress(@NotNull DataOutputStream out, @NotNull FetchProgress progress) throws IOException {
+    synchronized (out) {
+      out.writeByte(PROGRESS);
+      out.writeUTF(progress.format());
+      out.flush();
+    }
+  }
+
+
+  private static void writeResponse(@NotNull DataOutputStream out, boolean success, @NotNull byte[] error) throws IOException {
+    synchronized (out) {
+      out.writeByte(RESULT);
+      out.writeBoolean(success);
+      out.writeInt(error.length);
+      out.write(error);
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-living fetch processes running {@link FetchWorker}. A worker
+ * process performs one fetch at a time, so the number of running workers
+ * is not limited, but only {@link ServerPluginConfig#getFetchWorkersMaxIdle()}
+ * workers are kept after fetch. Worker is restarted after
+ * {@link ServerPluginConfig#getFetchWorkerMaxFetches()} fetches, on timeout,
+ * on OutOfMemoryError or when settings of the fetch process are changed.
+ * Fetch times out when it doesn't make progress for
+ * {@link ServerPluginConfig#getFetchTimeout()} seconds.
+ */
+public class FetchWorkerPool {
+
+  private static final Logger LOG = Logger.getInstance(FetchWorkerPool.class.getName());
+  private static final int MAX_STDERR_SIZE = 64 * 1024;
+
+  private final ServerPluginConfig myConfig;
+  private final FetcherProperties myFetcherProperties;
+  private final LinkedList<Worker> myIdleWorkers = new LinkedList<Worker>();//guarded by this
+  private ScheduledExecutorService myTimeoutExecutor;//guarded by this
+  private final AtomicInteger myWorkerNumber = new AtomicInteger();
+
+  public FetchWorkerPool(@NotNull ServerPluginConfig config, @NotNull FetcherProperties fetcherProperties) {
+    myConfig = config;
+    myFetcherProperties = fetcherProperties;
+  }
+
+
+  public boolean isEnabled() {
+    return myConfig.getFetchWorkersMaxIdle() > 0;
+  }
+
+
+  /**
+   * Runs fetch in a worker process
+   * @param request fetch properties in the format expected by {@link Fetcher}
+   * @param memory -Xmx of the worker process
+   * @param listener receives progress reported by the worker
+   * @return fetch result
+   * @throws VcsException if worker process cannot be started
+   */
+  @NotNull
+  public Result fetch(@NotNull byte[] request, @NotNull String memory, @NotNull FetchProgressListener listener) throws VcsException {
+    Worker worker = takeWorker(memory);
+    worker.resetProgress();
+    ScheduledFuture<?> timeout = scheduleTimeout(worker);
+    try {
+      worker.send(request);
+      Result result = worker.receive(listener);
+      timeout.cancel(false);
+      if (result.isOutOfMemory()) {
+        worker.destroy();
+      } else {
+        releaseWorker(worker);
+      }
+      return result;
+    } catch (IOException e) {
+      timeout.cancel(false);
+      worker.destroy();
+      if (worker.isTimedOut())
+        return new Result(false, worker.getStderr(), true);
+      return new Result(false, "Fetch worker process failed: " + e.getMessage() + "\n" + worker.getStderr(), false);
+    } catch (RuntimeException e) {
+      //e.g. error in listener, worker state is unknown: the rest of response is not read
+      timeout.cancel(false);
+      worker.destroy();
+      throw e;
+    }
+  }
+
+
+  /**
+   * Stops all idle worker processes
+   */
+  public void stopIdleWorkers() {
+    List<Worker> workers;
+    synchronized (this) {
+      workers = new ArrayList<Worker>(myIdleWorkers);
+      myIdleWorkers.clear();
+      if (myTimeoutExecutor != null) {
+        myTimeoutExecutor.shutdownNow();
+        myTimeoutExecutor = null;
+      }
+    }
+    for (Worker worker : workers) {
+      worker.destroy();
+    }
+  }
+
+
+  @NotNull
+  private Worker takeWorker(@NotNull String memory) throws VcsException {
+    String signature = getWorkerSignature();
+    List<Worker> obsolete = new ArrayList<Worker>();
+    Worker worker = null;
+    synchronized (this) {
+      long expireTime = System.currentTimeMillis() - myConfig.getFetchWorkerIdleTimeoutSeconds() * 1000L;
+      Iterator<Worker> iter = myIdleWorkers.iterator();
+      while (iter.hasNext()) {
+        Worker w = iter.next();
+        if (w.getIdleSince() < expireTime || !w.getSignature().equals(signature) || !w.isAlive()) {
+          iter.remove();
+          obsolete.add(w);
+        }
+      }
+      Iterator<Worker> lastUsed = myIdleWorkers.descendingIterator();
+      while (lastUsed.hasNext()) {
+        Worker w = lastUsed.next();
+        if (w.getMemory().equals(memory)) {
+          lastUsed.remove();
+          worker = w;
+          break;
+        }
+      }
+    }
+    for (Worker w : obsolete) {
+      w.destroy();
+    }
+    return worker != null ? worker : startWorker(signature, memory);
+  }
+
+
+  private void releaseWorker(@NotNull Worker worker) {
+    synchronized (this) {
+      if (worker.getFetchCount() < myConfig.getFetchWorkerMaxFetches() &&
+          myIdleWorkers.size() < myConfig.getFetchWorkersMaxIdle() &&
+          worker.getSignature().equals(getWorkerSignature())) {
+        worker.markIdle();
+        myIdleWorkers.add(worker);
+        return;
+      }
+    }
+    worker.destroy();
+  }
+
+
+  @NotNull
+  private ScheduledFuture<?> scheduleTimeout(@NotNull final Worker worker) {
+    final long timeoutMillis = myConfig.getFetchTimeout() * 1000L;
+    return getTimeoutExecutor().scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        if (System.currentTimeMillis() - worker.getLastAdvanceTime() > timeoutMillis)
+          worker.timeout();
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+  }
+
+
+  @NotNull
+  private synchronized ScheduledExecutorService getTimeoutExecutor() {
+    if (myTimeoutExecutor == null) {
+      myTimeoutExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Git fetch workers timeout");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return myTimeoutExecutor;
+  }
+
+
+  @NotNull
+  private Worker startWorker(@NotNull String signature, @NotNull String memory) throws VcsException {
+    File propertiesFile = myFetcherProperties.getPropertiesFile();
+    GeneralCommandLine cl = new GeneralCommandLine();
+    cl.setExePath(myConfig.getFetchProcessJavaPath());
+    cl.addParameters(myConfig.getProxySettingsForSeparateProcess());
+    cl.addParameters("-Xmx" + memory,
+                     "-cp", myConfig.getFetchClasspath(),
+                     myConfig.getFetchWorkerClassName(),
+                     propertiesFile.getAbsolutePath());
+    try {
+      Process process = cl.createProcess();
+      String name = "Git fetch worker " + myWorkerNumber.incrementAndGet();
+      LOG.debug("Start " + name);
+      return new Worker(name, process, propertiesFile, signature, memory);
+    } catch (ExecutionException e) {
+      FileUtil.delete(propertiesFile);
+      throw new VcsException("Cannot start fetch worker process: " + e.getMessage(), e);
+    }
+  }
+
+
+  /*
+   * Settings which are fixed when worker process starts, worker
+   * is restarted if they change. Memory is chosen per repository,
+   * fetch uses idle worker with the required memory.
+   */
+  @NotNull
+  private String getWorkerSignature() {
+    return myConfig.getFetchProcessJavaPath() + "\n" +
+           myConfig.getProxySettingsForSeparateProcess() + "\n" +
+           myConfig.getFetchClasspath() + "\n" +
+           myConfig.getFetchWorkerClassName() + "\n" +
+           myConfig.getFetcherProperties();
+  }
+
+
+  public static final class Result {
+    private final boolean mySuccess;
+    private final String myError;
+    private final boolean myTimeout;
+
+    Result(boolean success, @NotNull String error, boolean timeout) {
+      mySuccess = success;
+      myError = error;
+      myTimeout = timeout;
+    }
+
+    public boolean isSuccessful() {
+      return mySuccess;
+    }
+
+    @NotNull
+    public String getError() {
+      return myError;
+    }
+
+    public boolean isTimeout() {
+      return myTimeout;
+    }
+
+    public boolean isOutOfMemory() {
+      return myError.contains("java.lang.OutOfMemoryError");
+    }
+  }
+
+
+  private static final class Worker {
+    private final String myName;
+    private final Process myProcess;
+    private final File myPropertiesFile;
+    private final String mySignature;
+    private final String myMemory;
+    private final DataOutputStream myInput;
+    private final DataInputStream myOutput;
+    private final StringBuffer myStderr = new StringBuffer();
+    private volatile boolean myTimedOut;
+    private volatile long myLastAdvanceTime;
+    private FetchProgress myLastProgress;
+    private int myFetchCount;
+    private long myIdleSince;
+
+    private Worker(@NotNull String name, @NotNull Process process, @NotNull File propertiesFile, @NotNull String signature, @NotNull String memory) {
+      myName = name;
+      myProcess = process;
+      myPropertiesFile = propertiesFile;
+      mySignature = signature;
+      myMemory = memory;
+      myInput = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      myOutput = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      Thread stderrReader = new Thread(new Runnable() {
+        public void run() {
+          readStderr();
+        }
+      }, myName + " stderr reader");
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+    }
+
+    void resetProgress() {
+      myLastProgress = null;
+      myLastAdvanceTime = System.currentTimeMillis();
+    }
+
+    void send(@NotNull byte[] request) throws IOException {
+      myFetchCount++;
+      myStderr.setLength(0);
+      myInput.writeInt(request.length);
+      myInput.write(request);
+      myInput.flush();
+    }
+
+    @NotNull
+    Result receive(@NotNull FetchProgressListener listener) throws IOException {
+      byte type;
+      while ((type = myOutput.readByte()) == FetchWorker.PROGRESS) {
+        FetchProgress progress = FetchProgress.parse(myOutput.readUTF());
+        if (progress == null)
+          continue;
+        if (progress.isAdvancedSince(myLastProgress))
+          myLastAdvanceTime = System.currentTimeMillis();
+        myLastProgress = progress;
+        listener.onProgress(progress);
+      }
+      if (type != FetchWorker.RESULT)
+        throw new IOException("Unexpected message from fetch worker: " + type);
+      boolean success = myOutput.readBoolean();
+      byte[] error = new byte[myOutput.readInt()];
+      myOutput.readFully(error);
+      String stderr = getStderr();
+      if (success && stderr.length() > 0) {
+        LOG.warn("Error output produced by git fetch");
+        LOG.warn(stderr);
+      }
+      return new Result(success, new String(error, "UTF-8") + stderr, false);
+    }
+
+    long getLastAdvanceTime() {
+      return myLastAdvanceTime;
+    }
+
+    void timeout() {
+      if (myTimedOut)
+        return;
+      myTimedOut = true;
+      LOG.debug(myName + " timed out, stop it");
+      myProcess.destroy();
+    }
+
+    boolean isTimedOut() {
+      return myTimedOut;
+    }
+
+    boolean isAlive() {
+      try {
+        myProcess.exitValue();
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    void destroy() {
+      LOG.debug("Stop " + myName);
+      try {
+        myInput.close();//worker exits when its stdin is closed
+      } catch (IOException e) {
+        //ignore
+      }
+      myProcess.destroy();
+      FileUtil.delete(myPropertiesFile);
+    }
+
+    @NotNull
+    String getSignature() {
+      return mySignature;
+    }
+
+    @NotNull
+    String getMemory() {
+      return myMemory;
+    }
+
+    int getFetchCount() {
+      return myFetchCount;
+    }
+
+    long getIdleSince() {
+      return myIdleSince;
+    }
+
+    void markIdle() {
+      myIdleSince = System.currentTimeMillis();
+    }
+
+    @NotNull
+    String getStderr() {
+      return myStderr.toString();
+    }
+
+    private void readStderr() {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(myProcess.getErrorStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (myStderr.length() < MAX_STDERR_SIZE)
+            myStderr.append(line).append("\n");
+        }
+      } catch (IOException e) {
+        //process is destroyed
+      }
+    }
+  }
+}
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import jetbrains.buildServer.serverSide.FileWatchingPropertiesModel;
@@ -55,31 +56,63 @@ public class Fetcher {
     ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
     try {
       Map<String, String> properties = VcsUtil.stringToProperties(readInput());
-      String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
-      String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
-      debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
-      final String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
-      new TeamCityProperties() {{
-        setModel(new FileWatchingPropertiesModel(new File(internalPropsFile)));
-      }};
-
-      ByteArrayOutputStream output = new ByteArrayOutputStream();
-      FetchProgressMonitor progress = new FetchProgressMonitor(new PrintStream(output));
-      exec.scheduleAtFixedRate(new Monitoring(threadDumpFilePath, output), 10, 10, TimeUnit.SECONDS);
-      fetch(new File(repositoryPath), properties, progress);
-      FileUtil.delete(new File(threadDumpFilePath));
+      debug = "true".equals(properties.get(Constants.VCS_DEBUG_ENABLED));
+      setInternalProperties(properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE));
+      configureStreamFileThreshold();
+      fetch(properties, exec, new FetchProgressListener() {
+        public void onProgress(@NotNull FetchProgress progress) {
+          //server parses progress from stdout, it also resets the fetch idle timeout
+          System.out.println(progress.format());
+          System.out.flush();
+        }
+      });
     } catch (Throwable t) {
-      if (debug || isImportant(t)) {
-        t.printStackTrace(System.err);
-      } else {
-        System.err.println(t.getMessage());
-      }
+      printError(t, debug, System.err);
       System.exit(1);
     } finally {
       exec.shutdown();
     }
   }
 
+
+  static void setInternalProperties(@NotNull final String internalPropsFile) {
+    new TeamCityProperties() {{
+      setModel(new FileWatchingPropertiesModel(new File(internalPropsFile)));
+    }};
+  }
+
+
+  /**
+   * Runs fetch described by the properties, progress is reported to the listener and
+   * in thread dump file using the specified executor
+   */
+  static void fetch(@NotNull Map<String, String> properties,
+                    @NotNull ScheduledExecutorService exec,
+                    @NotNull FetchProgressListener listener) throws Exception {
+    String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
+    String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
+    properties.remove(Constants.VCS_DEBUG_ENABLED);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    FetchProgressMonitor progress = new FetchProgressMonitor(new PrintStream(output), new File(repositoryPath, "objects"), listener);
+    ScheduledFuture<?> monitoring = exec.scheduleAtFixedRate(new Monitoring(threadDumpFilePath, output), 10, 10, TimeUnit.SECONDS);
+    try {
+      fetch(new File(repositoryPath), properties, progress);
+    } finally {
+      monitoring.cancel(false);
+    }
+    FileUtil.delete(new File(threadDumpFilePath));
+  }
+
+
+  static void printError(@NotNull Throwable t, boolean debug, @NotNull PrintStream out) {
+    if (debug || isImportant(t)) {
+      t.printStackTrace(out);
+    } else {
+      out.println(t.getMessage());
+    }
+  }
+
   /**
    * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>
    *
@@ -95,24 +128,28 @@ public class Fetcher {
     AuthSettings auth = new AuthSettings(vcsRootProperties);
     PluginConfigImpl config = new PluginConfigImpl();
 
-    configureStreamFileThreshold();
-    TransportFactory transportFactory = new TransportFactoryImpl(config);
+    TransportFactoryImpl transportFactory = new TransportFactoryImpl(config);
     Transport tn = null;
+    Repository repository = null;
     try {
       //This method should be called with repository creation lock, but Fetcher is ran in separate process, so
       //locks won't help. Fetcher is ran after we have ensured that repository exists, so we can call it without lock.
-      Repository repository = GitServerUtil.getRepository(repositoryDir, new URIish(fetchUrl));
-      workaroundRacyGit();
+      repository = GitServerUtil.getRepository(repositoryDir, new URIish(fetchUrl));
       tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
       FetchResult result = tn.fetch(progressMonitor, parseRefspecs(refspecs));
       GitServerUtil.checkFetchSuccessful(result);
     } finally {
       if (tn != null)
         tn.close();
+      //fetch worker process is long-living and the factory is created for every fetch,
+      //don't leave released ssh sessions connected in its pool
+      transportFactory.disconnectIdleSessions();
+      if (repository != null)
+        repository.close();//fetch worker process is long-living, don't keep packs opened
     }
   }
 
-  private static void configureStreamFileThreshold() {
+  static void configureStreamFileThreshold() {
     Config rc = new Config();
     rc.setLong("core", null, "streamfilethreshold", Integer.MAX_VALUE);
     WindowCacheConfig cfg = new WindowCacheConfig();
@@ -146,22 +183,6 @@ public class Fetcher {
            t instanceof InterruptedIOException;
   }
 
-  /**
-   * Fetch could be so fast that even though it downloads some new packs
-   * a timestamp of objects/packs dir is not changed (at least on linux).
-   * If timestamp of that dir is not changed from the last read, jgit assumes
-   * there is nothing new there and could not find object even if it already
-   * exists in repository. This method sleeps for 1 second, so subsequent
-   * write to objects/pack dir will change its timestamp.
-   */
-  private static void workaroundRacyGit() {
-    try {
-      Thread.sleep(1000);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-    }
-  }
-
   private static Collection<RefSpec> parseRefspecs(String refspecs) {
     String[] specs = refspecs.split(",");
     List<RefSpec> result = new ArrayList<RefSpec>();
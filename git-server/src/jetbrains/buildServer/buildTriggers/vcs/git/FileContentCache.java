@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches results of {@link GitVcsFileContentProvider}: blob ids of files
+ * in commits and content of small blobs. Both caches are LRU, the content
+ * cache is bounded by the total size of the content, see
+ * {@link ServerPluginConfig#getFileContentCacheSizeBytes()}.
+ * ThreadSafe.
+ */
+public final class FileContentCache {
+
+  private static final int MAX_BLOB_IDS = 10000;
+
+  private final ServerPluginConfig myConfig;
+  //repository dir, commit, path -> blob id
+  private final Map<String, ObjectId> myBlobIds = new LinkedHashMap<String, ObjectId>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ObjectId> eldest) {
+      return size() > MAX_BLOB_IDS;
+    }
+  };//guarded by myBlobIds
+  //blob id + conversion mode -> content
+  private final LinkedHashMap<String, byte[]> myContent = new LinkedHashMap<String, byte[]>(16, 0.75f, true);//guarded by myContent
+  private long myContentSize;//guarded by myContent
+
+  public FileContentCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  @Nullable
+  public ObjectId getBlobId(@NotNull File repositoryDir, @NotNull String commit, @NotNull String path) {
+    synchronized (myBlobIds) {
+      return myBlobIds.get(getBlobIdKey(repositoryDir, commit, path));
+    }
+  }
+
+
+  public void putBlobId(@NotNull File repositoryDir, @NotNull String commit, @NotNull String path, @NotNull AnyObjectId blobId) {
+    if (!isEnabled())
+      return;
+    synchronized (myBlobIds) {
+      myBlobIds.put(getBlobIdKey(repositoryDir, commit, path), blobId.copy());
+    }
+  }
+
+
+  /**
+   * @return copy of the cached content or null if content is not cached
+   */
+  @Nullable
+  public byte[] getContent(@NotNull AnyObjectId blobId, boolean autoCrlf) {
+    byte[] content;
+    synchronized (myContent) {
+      content = myContent.get(getContentKey(blobId, autoCrlf));
+    }
+    return content != null ? content.clone() : null;
+  }
+
+
+  public void putContent(@NotNull AnyObjectId blobId, boolean autoCrlf, @NotNull byte[] content) {
+    if (!isEnabled())
+      return;
+    long maxSize = myConfig.getFileContentCacheSizeBytes();
+    //don't let a single blob evict most of the cache
+    if (content.length > maxSize / 8)
+      return;
+    String key = getContentKey(blobId, autoCrlf);
+    synchronized (myContent) {
+      byte[] old = myContent.put(key, content.clone());
+      if (old != null)
+        myContentSize -= old.length;
+      myContentSize += content.length;
+      Iterator<byte[]> iter = myContent.values().iterator();
+      while (myContentSize > maxSize && iter.hasNext()) {
+        myContentSize -= iter.next().length;
+        iter.remove();
+      }
+    }
+  }
+
+
+  private boolean isEnabled() {
+    return myConfig.getFileContentCacheSizeBytes() > 0;
+  }
+
+
+  @NotNull
+  private String getBlobIdKey(@NotNull File repositoryDir, @NotNull String commit, @NotNull String path) {
+    return repositoryDir.getPath() + "\n" + commit + "\n" + path;
+  }
+
+
+  @NotNull
+  private String getContentKey(@NotNull AnyObjectId blobId, boolean autoCrlf) {
+    return blobId.name() + (autoCrlf ? " crlf" : "");
+  }
+}
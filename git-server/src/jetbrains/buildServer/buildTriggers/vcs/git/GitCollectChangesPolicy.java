@@ -67,11 +67,15 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                                @NotNull RepositoryStateData fromState,
                                                @NotNull RepositoryStateData toState,
                                                @NotNull CheckoutRules checkoutRules) throws VcsException {
+    if (isSameState(fromState, toState)) {
+      LOG.debug("Repository state of " + LogUtil.describe(root) + " didn't change, return empty list of changes");
+      return Collections.emptyList();
+    }
     List<ModificationData> changes = new ArrayList<ModificationData>();
     OperationContext context = myVcs.createContext(root, "collecting changes");
     try {
       Repository r = context.getRepository();
-      ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+      ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, myVcs.getCommitChangesCache(), context);
       revWalk.sort(RevSort.TOPO);
       if (myConfig.usePerBranchFetch()) {
         ensureRepositoryStateLoadedOneFetchPerBranch(context, toState, true);
@@ -83,9 +87,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       }
       markStart(r, revWalk, toState);
       markUninteresting(r, revWalk, fromState, toState);
-      while (revWalk.next() != null) {
-        changes.add(revWalk.createModificationData());
-      }
+      changes.addAll(revWalk.collectModificationData(myVcs.getCollectChangesExecutor()));
     } catch (Exception e) {
       throw context.wrapException(e);
     } finally {
@@ -94,6 +96,14 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
     return changes;
   }
 
+  /*
+   * States returned by GitVcsSupport.getCurrentState() are reused while refs
+   * don't move, so in the common case the check is a reference comparison
+   */
+  private boolean isSameState(@NotNull RepositoryStateData fromState, @NotNull RepositoryStateData toState) {
+    return fromState == toState || fromState.getBranchRevisions().equals(toState.getBranchRevisions());
+  }
+
   private void ensureRepositoryStateLoaded(@NotNull OperationContext context,
                                            @NotNull Repository db,
                                            @NotNull RepositoryStateData state,
@@ -104,7 +114,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       String revision = GitUtils.versionRevision(entry.getValue());
       RevCommit commit = null;
       try {
-        commit = myVcs.getCommit(db, revision);
+        commit = context.getCommit(db, revision);
       } catch (IOException ex) {
         //ignore error, will try to fetch
       }
@@ -113,7 +123,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         fetch.run();
 
       try {
-        myVcs.getCommit(db, revision);
+        context.getCommit(db, revision);
       } catch (Exception e) {
         if (throwErrors) {
           throw new VcsException("Cannot find revision " + revision + " in VCS root " + LogUtil.describe(root), e);
@@ -255,7 +265,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                                   @NotNull final String upperBoundSHA,
                                                   @NotNull final String lowerBoundSHA) throws VcsException, IOException {
     List<ModificationData> modifications = new ArrayList<ModificationData>();
-    ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+    ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, myVcs.getCommitChangesCache(), context);
     revWalk.sort(RevSort.TOPO);
     try {
       revWalk.markStart(revWalk.parseCommit(ObjectId.fromString(upperBoundSHA)));
@@ -266,9 +276,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         logFromRevisionNotFound(lowerBoundSHA);
         revWalk.limitByNumberOfCommits(myConfig.getNumberOfCommitsWhenFromVersionNotFound());
       }
-      while (revWalk.next() != null) {
-        modifications.add(revWalk.createModificationData());
-      }
+      modifications.addAll(revWalk.collectModificationData(myVcs.getCollectChangesExecutor()));
       return modifications;
     } finally {
       revWalk.release();
@@ -31,6 +31,7 @@ import org.eclipse.jgit.transport.Transport;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collections;
+import java.util.concurrent.locks.Lock;
 
 /**
 * @author dmitry.neverov
@@ -70,7 +71,9 @@ class GitLabelingSupport implements LabelingSupport {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Tag created  " + label + "=" + version + " for " + gitRoot.debugInfo());
       }
-      synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
+      Lock writeLock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
+      writeLock.lock();
+      try {
         final Transport tn = myTransportFactory.createTransport(r, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
         try {
           final PushConnection c = tn.openPush();
@@ -92,6 +95,8 @@ class GitLabelingSupport implements LabelingSupport {
         } finally {
           tn.close();
         }
+      } finally {
+        writeLock.unlock();
       }
     } catch (Exception e) {
       throw context.wrapException(e);
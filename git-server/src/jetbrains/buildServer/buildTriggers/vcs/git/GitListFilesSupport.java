@@ -20,6 +20,7 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.*;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.treewalk.TreeWalk;
@@ -29,110 +30,131 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 
 /**
- *
+ * Lists files at the tip of the root's branch. The tip is resolved in the
+ * local mirror when the branch is already there, so browsing doesn't
+ * require a connection to the remote repository. Listings are cached by
+ * tree id in the {@link TreeListingCache}, nested paths are resolved through
+ * the cached listings of their parents.
  */
 public class GitListFilesSupport implements ListDirectChildrenPolicy {
 
   private final GitVcsSupport myVcs;
+  private final TreeListingCache myCache;
 
-  public GitListFilesSupport(@NotNull GitVcsSupport vcs) {
+  public GitListFilesSupport(@NotNull GitVcsSupport vcs, @NotNull TreeListingCache cache) {
     myVcs = vcs;
+    myCache = cache;
   }
 
   @NotNull
   public Collection<VcsFileData> listFiles(@NotNull VcsRoot root, @NotNull String path) throws VcsException {
-    String currentVersion = getRevision(root);
     OperationContext context = myVcs.createContext(root, "list files");
-    ListFilesTreeWalk walk = null;
     try {
-      walk = getTreeWalk(context, path, currentVersion);
-      List<VcsFileData> files = new ArrayList<VcsFileData>();
-      while (walk.next()) {
-        files.add(walk.getVcsFile());
-      }
-      return files;
+      Repository r = context.getRepository();
+      RevCommit commit = getBranchTip(context);
+      ObjectId tree = getTree(r, commit, path);
+      if (tree == null) //show submodules as empty dirs
+        return new ArrayList<VcsFileData>();
+      return getListing(r, tree).getFiles();
     } catch (VcsFileNotFoundException e) {
       throw e;
     } catch (Exception e) {
       throw new VcsException(e);
     } finally {
-      if (walk != null)
-        walk.release();
       context.close();
     }
   }
 
+  /**
+   * Mirror is updated on every changes collection, so the branch tip in the
+   * mirror is as recent as the last detected change. Remote repository is
+   * asked only when the branch is not fetched yet.
+   */
   @NotNull
-  private ListFilesTreeWalk getTreeWalk(@NotNull OperationContext context, @NotNull String path, @NotNull String revision) throws Exception {
+  private RevCommit getBranchTip(@NotNull OperationContext context) throws Exception {
+    GitVcsRoot gitRoot = context.getGitRoot();
     Repository r = context.getRepository();
-    RevCommit commit = myVcs.ensureCommitLoaded(context, context.getGitRoot(), revision);
-    ListFilesTreeWalk walk;
-    if (isRootPath(path)) {
-      walk = new ListFilesTreeWalk(r);
-      walk.addTree(commit.getTree());
-    } else {
-      TreeWalk walk1 = null;
+    Ref ref = r.getRef(GitUtils.expandRef(gitRoot.getRef()));
+    if (ref != null && ref.getObjectId() != null) {
       try {
-        walk1 = TreeWalk.forPath(r, path, commit.getTree());
-        if (walk1 == null)
-          throw new VcsFileNotFoundException("Cannot find path " + path);
-        if (walk1.getFileMode(0) == FileMode.GITLINK) //show submodules as empty dirs
-          return new EmptyTreeWalk(r);
-        ObjectId tree = walk1.getObjectId(0);
-        walk = new ListFilesTreeWalk(r);
-        walk.addTree(tree);
-      } finally {
-        if (walk1 != null)
-          walk1.release();
+        return context.getCommit(r, ref.getObjectId());
+      } catch (IOException e) {
+        //commit is missing in the mirror, resolve it in the remote repository
       }
     }
-    walk.setRecursive(false);
-    return walk;
-  }
-
-  @NotNull
-  private String getRevision(@NotNull VcsRoot root) throws VcsException {
-    return GitUtils.versionRevision(myVcs.getCurrentVersion(root));
+    String revision = GitUtils.versionRevision(myVcs.getCurrentVersion(context.getRoot()));
+    return myVcs.ensureCommitLoaded(context, gitRoot, revision);
   }
 
-  private boolean isRootPath(@Nullable String path) {
-    return StringUtil.isEmpty(path);
-  }
-
-  private static class ListFilesTreeWalk extends TreeWalk {
-
-    ListFilesTreeWalk(Repository r) {
-      super(r);
+  /**
+   * @return id of the tree at the specified path or null if path points to a submodule
+   * @throws VcsFileNotFoundException if there is no such path in the commit
+   */
+  @Nullable
+  private ObjectId getTree(@NotNull Repository r, @NotNull RevCommit commit, @NotNull String path) throws Exception {
+    if (isRootPath(path))
+      return commit.getTree();
+    ObjectId cachedTree = myCache.getTreeId(commit, path);
+    if (cachedTree != null)
+      return cachedTree;
+    ObjectId tree = commit.getTree();
+    String[] names = path.split("/");
+    for (int i = 0; i < names.length; i++) {
+      TreeListingCache.Listing listing = getListing(r, tree);
+      int index = listing.indexOf(names[i]);
+      if (index == -1)
+        throw new VcsFileNotFoundException("Cannot find path " + path);
+      if (listing.isSubmodule(index) && i == names.length - 1)
+        return null;
+      tree = listing.getTreeId(index);
+      if (tree == null)
+        throw new VcsFileNotFoundException("Cannot find path " + path);
     }
+    myCache.putTreeId(commit, path, tree);
+    return tree;
+  }
 
-    @NotNull
-    VcsFileData getVcsFile() {
-      String name = getNameString();
-      FileMode mode = getFileMode(0);
-      if (mode == FileMode.MISSING)
-        throw new IllegalStateException("Missing file " + name);
-      if (mode == FileMode.TREE)
-        return new VcsFileData(name, true);
-      if (mode == FileMode.GITLINK)
-        return new VcsFileData(name, true);
-      if (mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE || mode == FileMode.SYMLINK)
-        return new VcsFileData(name, false);
-      throw new IllegalStateException("Unknown file mode: " + mode + ", path " + name);
+  @NotNull
+  private TreeListingCache.Listing getListing(@NotNull Repository r, @NotNull ObjectId tree) throws IOException {
+    TreeListingCache.Listing listing = myCache.getListing(tree);
+    if (listing == null) {
+      listing = listTree(r, tree);
+      myCache.putListing(tree, listing);
     }
+    return listing;
   }
 
-  private static class EmptyTreeWalk extends ListFilesTreeWalk {
-
-    private EmptyTreeWalk(Repository repo) {
-      super(repo);
+  @NotNull
+  private TreeListingCache.Listing listTree(@NotNull Repository r, @NotNull ObjectId tree) throws IOException {
+    TreeWalk walk = new TreeWalk(r);
+    try {
+      walk.addTree(tree);
+      walk.setRecursive(false);
+      TreeListingCache.ListingBuilder listing = new TreeListingCache.ListingBuilder();
+      while (walk.next()) {
+        String name = walk.getNameString();
+        FileMode mode = walk.getFileMode(0);
+        if (mode == FileMode.TREE) {
+          listing.addDir(name, walk.getObjectId(0));
+        } else if (mode == FileMode.GITLINK) {
+          listing.addSubmodule(name);
+        } else if (mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE || mode == FileMode.SYMLINK) {
+          listing.addFile(name);
+        } else if (mode == FileMode.MISSING) {
+          throw new IllegalStateException("Missing file " + name);
+        } else {
+          throw new IllegalStateException("Unknown file mode: " + mode + ", path " + name);
+        }
+      }
+      return listing.build();
+    } finally {
+      walk.release();
     }
+  }
 
-    @Override
-    public boolean next() throws IOException {
-      return false;
-    }
+  private boolean isRootPath(@Nullable String path) {
+    return StringUtil.isEmpty(path);
   }
 }
@@ -22,11 +22,12 @@ import jetbrains.buildServer.util.RecentEntriesCache;
 import jetbrains.buildServer.util.filters.Filter;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
@@ -118,7 +119,7 @@ public class GitMapFullPath {
   private RevCommit findCommit(@NotNull OperationContext context, @NotNull String commit) throws VcsException {
     final Repository repository = context.getRepository();
     try {
-      return myGit.getCommit(repository, commit);
+      return context.getCommit(repository, commit);
     } catch (IOException e) {
       return null;
     }
@@ -162,52 +163,31 @@ public class GitMapFullPath {
     if (myConfig.ignoreFetchedCommits()) {
       myCache.invalidateCache(db);
     } else {
-      try {
-        Set<String> newCommits = getNewCommits(db, oldRefs, newRefs);
-        myCache.invalidateCache(db, newCommits);
-      } catch (IOException e) {
-        LOG.warn("Error while calculating new commits for repository " + db.getDirectory(), e);
-        myCache.invalidateCache(db);
+      Set<ObjectId> updatedHeads = new HashSet<ObjectId>();
+      Set<ObjectId> oldHeads = new HashSet<ObjectId>();
+      for (Map.Entry<String, Ref> e : newRefs.entrySet()) {
+        String refName = e.getKey();
+        if (!refName.startsWith("refs/"))
+          continue;
+        Ref newRef = e.getValue();
+        Ref oldRef = oldRefs.get(refName);
+        ObjectId newId = newRef.getObjectId();
+        if (newId != null && (oldRef == null || !newId.equals(oldRef.getObjectId())))
+          updatedHeads.add(newId);
+        if (oldRef != null && oldRef.getObjectId() != null)
+          oldHeads.add(oldRef.getObjectId());
       }
+      if (!updatedHeads.isEmpty())
+        myCache.invalidateCache(db, updatedHeads, oldHeads);
     }
   }
 
-  private Set<String> getNewCommits(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
-    Set<ObjectId> updatedHeads = new HashSet<ObjectId>();
-    Set<ObjectId> uninteresting = new HashSet<ObjectId>();
-    for (Map.Entry<String, Ref> e : newRefs.entrySet()) {
-      String refName = e.getKey();
-      if (!refName.startsWith("refs/"))
-        continue;
-      Ref newRef = e.getValue();
-      Ref oldRef = oldRefs.get(refName);
-      if (oldRef == null || !oldRef.getObjectId().equals(newRef.getObjectId()))
-        updatedHeads.add(newRef.getObjectId());
-      if (oldRef != null)
-        uninteresting.add(oldRef.getObjectId());
-    }
-
-    RevWalk revWalk = new RevWalk(db);
-    revWalk.sort(RevSort.TOPO);
-    for (ObjectId id : updatedHeads) {
-      revWalk.markStart(revWalk.parseCommit(id));
-    }
-    for (ObjectId id : uninteresting) {
-      revWalk.markUninteresting(revWalk.parseCommit(id));
-    }
-    Set<String> newCommits = new HashSet<String>();
-    RevCommit newCommit = null;
-    while ((newCommit = revWalk.next()) != null) {
-      newCommits.add(newCommit.name());
-    }
-    return newCommits;
-  }
-
   /**
    * Revisions cache for whole server.
    * ThreadSafe.
    */
   private final static class RevisionsCache {
+    private static final int MAX_NEW_COMMITS = 100000;
     //repositoryId -> per repository cache
     private final ConcurrentMap<String, RepositoryRevisionCache> myCache = new ConcurrentHashMap<String, RepositoryRevisionCache>();
     private final int myRepositoryCacheSize;
@@ -223,13 +203,61 @@ public class GitMapFullPath {
         repositoryCache.removeNegativeEntries();
     }
 
-    void invalidateCache(@NotNull final Repository db, @NotNull Set<String> newCommits) {
+    /**
+     * Commits are added to the index of the repository only if the index exists,
+     * i.e. full paths were already mapped in this repository
+     */
+    void invalidateCache(@NotNull final Repository db, @NotNull Set<ObjectId> updatedHeads, @NotNull Set<ObjectId> oldHeads) {
       String repositoryId = getRepositoryId(db);
       RepositoryRevisionCache repositoryCache = myCache.get(repositoryId);
       if (repositoryCache != null) {
         if (LOG.isDebugEnabled())
-          LOG.debug("Invalidate cache for repository " + db.getDirectory() + ", new commits " + newCommits);
-        repositoryCache.removeNegativeEntries(newCommits);
+          LOG.debug("Invalidate cache for repository " + db.getDirectory() + ", updated heads " + updatedHeads);
+        try {
+          repositoryCache.addCommits(getNewCommits(db, updatedHeads, oldHeads));
+        } catch (IOException e) {
+          LOG.warn("Error while calculating new commits for repository " + db.getDirectory(), e);
+          repositoryCache.addCommits(updatedHeads);
+        }
+        repositoryCache.removeNegativeEntries(db);
+      }
+    }
+
+    /**
+     * @return commits reachable from updated heads and not reachable from old heads,
+     * at most {@link #MAX_NEW_COMMITS}, commits beyond the limit are looked up on demand
+     */
+    @NotNull
+    private List<ObjectId> getNewCommits(@NotNull Repository db, @NotNull Set<ObjectId> updatedHeads, @NotNull Set<ObjectId> oldHeads) throws IOException {
+      RevWalk revWalk = new RevWalk(db);
+      try {
+        revWalk.setRetainBody(false);
+        for (ObjectId id : updatedHeads) {
+          RevObject head = revWalk.peel(revWalk.parseAny(id));
+          if (head instanceof RevCommit)
+            revWalk.markStart((RevCommit) head);
+        }
+        for (ObjectId id : oldHeads) {
+          try {
+            RevObject head = revWalk.peel(revWalk.parseAny(id));
+            if (head instanceof RevCommit)
+              revWalk.markUninteresting((RevCommit) head);
+          } catch (MissingObjectException e) {
+            //old head was removed from repository, commits reachable from it will be walked again
+          }
+        }
+        List<ObjectId> newCommits = new ArrayList<ObjectId>();
+        RevCommit commit;
+        while ((commit = revWalk.next()) != null) {
+          newCommits.add(commit.copy());
+          if (newCommits.size() >= MAX_NEW_COMMITS) {
+            LOG.debug("Too many new commits in repository " + db.getDirectory() + ", only " + MAX_NEW_COMMITS + " of them are indexed");
+            break;
+          }
+        }
+        return newCommits;
+      } finally {
+        revWalk.release();
       }
     }
 
@@ -268,10 +296,14 @@ public class GitMapFullPath {
 
 
   /**
-   * Revisions cache for single repository.
+   * Revisions cache for single repository. Commits known to be present in the
+   * repository (found by lookups or fetched into it) are kept in the
+   * {@link CommitIndex}, revisions the repository doesn't have and revisions
+   * which are not full SHAs are kept in the recent entries cache.
    * ThreadSafe.
    */
   private final static class RepositoryRevisionCache {
+    private final CommitIndex myCommits = new CommitIndex();
     //revision (SHA) -> does this repository have such revision
     private final RecentEntriesCache<String, Boolean> myCache;
 
@@ -284,16 +316,22 @@ public class GitMapFullPath {
      */
     @Nullable
     Boolean hasRevision(@NotNull String revision) {
+      if (ObjectId.isId(revision) && myCommits.contains(ObjectId.fromString(revision)))
+        return true;
       return myCache.get(revision);
     }
 
     void saveRevision(@NotNull String revision, boolean has) {
-      myCache.put(revision, has);
+      if (has && ObjectId.isId(revision)) {
+        myCommits.add(ObjectId.fromString(revision));
+      } else {
+        myCache.put(revision, has);
+      }
     }
 
     @Override
     public String toString() {
-      return myCache.toString();
+      return "{commits: " + myCommits.size() + ", cache: " + myCache.toString() + "}";
     }
 
     void removeNegativeEntries() {
@@ -304,16 +342,33 @@ public class GitMapFullPath {
       });
     }
 
-    void removeNegativeEntries(@NotNull Set<String> newCommits) {
+    void addCommits(@NotNull Collection<ObjectId> commits) {
+      myCommits.addAll(commits);
+    }
+
+    /**
+     * Removes negative entries for commits which appeared in the repository,
+     * the cost depends on the cache size rather than on the number of fetched commits
+     */
+    void removeNegativeEntries(@NotNull Repository db) {
+      List<String> negative = new ArrayList<String>();
       synchronized (myCache) {
-        Set<String> forRemove = new HashSet<String>();
         for (String commit : myCache.keySet()) {
-          if (newCommits.contains(commit) && Boolean.FALSE.equals(myCache.get(commit)))
-            forRemove.add(commit);
+          if (ObjectId.isId(commit) && Boolean.FALSE.equals(myCache.get(commit)))
+            negative.add(commit);
         }
+      }
 
+      Set<String> forRemove = new HashSet<String>();
+      for (String commit : negative) {
+        if (db.hasObject(ObjectId.fromString(commit)))
+          forRemove.add(commit);
+      }
+
+      synchronized (myCache) {
         for (String commit : forRemove) {
-          myCache.remove(commit);
+          if (Boolean.FALSE.equals(myCache.get(commit)))
+            myCache.remove(commit);
         }
       }
     }
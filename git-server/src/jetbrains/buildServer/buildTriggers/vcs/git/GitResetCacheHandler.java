@@ -37,10 +37,12 @@ public class GitResetCacheHandler implements ResetCacheHandler {
   private final static String GIT_CACHE_NAME = "git";
 
   private final RepositoryManager myRepositoryManager;
+  private final RepositoryStateCache myStateCache;
   private AtomicBoolean myResetRunning = new AtomicBoolean(false);
 
-  public GitResetCacheHandler(@NotNull RepositoryManager repositoryManager) {
+  public GitResetCacheHandler(@NotNull RepositoryManager repositoryManager, @NotNull RepositoryStateCache stateCache) {
     myRepositoryManager = repositoryManager;
+    myStateCache = stateCache;
   }
 
   @NotNull
@@ -59,6 +61,7 @@ public class GitResetCacheHandler implements ResetCacheHandler {
       return;
     }
     resetAllMirrors();
+    myStateCache.clear();
     finishReset();
   }
 
@@ -27,6 +27,8 @@ import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.storage.file.ObjectDirectory;
+import org.eclipse.jgit.storage.file.PackFile;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
 import org.eclipse.jgit.transport.URIish;
@@ -36,6 +38,8 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Utilities for server part of the plugin
@@ -252,4 +256,44 @@ public class GitServerUtil {
       }
     }
   }
+
+
+  /**
+   * Adds packs created by another process to the list of packs of the repository.
+   *
+   * Jgit rescans the objects/pack dir only when its timestamp is changed, which
+   * could be not the case if the pack is created shortly after the previous scan.
+   * This method opens such packs explicitly, so their objects are available
+   * without waiting for timestamp change.
+   *
+   * @param db repository of interest
+   */
+  public static void openNewPacks(@NotNull Repository db) {
+    ObjectDatabase odb = db.getObjectDatabase();
+    if (!(odb instanceof ObjectDirectory))
+      return;
+    ObjectDirectory objectDir = (ObjectDirectory) odb;
+    File packDir = new File(objectDir.getDirectory(), "pack");
+    File[] files = packDir.listFiles();
+    if (files == null)
+      return;
+    Set<String> knownPacks = new HashSet<String>();
+    for (PackFile pack : objectDir.getPacks()) {
+      knownPacks.add(pack.getPackFile().getName());
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (!name.startsWith("pack-") || !name.endsWith(".pack") || knownPacks.contains(name))
+        continue;
+      File idx = new File(packDir, name.substring(0, name.length() - ".pack".length()) + ".idx");
+      if (!idx.isFile())
+        continue;
+      try {
+        objectDir.openPack(f, idx);
+        LOG.debug("Open new pack " + f.getAbsolutePath());
+      } catch (IOException e) {
+        LOG.warn("Cannot open pack " + f.getAbsolutePath(), e);
+      }
+    }
+  }
 }
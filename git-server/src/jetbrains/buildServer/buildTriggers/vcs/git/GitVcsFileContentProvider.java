@@ -17,6 +17,7 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTreeIterator;
 import jetbrains.buildServer.vcs.*;
 import org.eclipse.jgit.lib.CoreConfig;
@@ -30,11 +31,12 @@ import org.eclipse.jgit.treewalk.WorkingTreeOptions;
 import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.eclipse.jgit.util.io.AutoCRLFOutputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Collections;
+import java.util.*;
 
 /**
 * @author dmitry.neverov
@@ -46,11 +48,14 @@ public class GitVcsFileContentProvider implements VcsFileContentProvider {
 
   private final GitVcsSupport myVcs;
   private final ServerPluginConfig myConfig;
+  private final FileContentCache myCache;
 
   public GitVcsFileContentProvider(@NotNull GitVcsSupport vcs,
-                                   @NotNull ServerPluginConfig config) {
+                                   @NotNull ServerPluginConfig config,
+                                   @NotNull FileContentCache cache) {
     myVcs = vcs;
     myConfig = config;
+    myCache = cache;
   }
 
   @NotNull
@@ -70,12 +75,17 @@ public class GitVcsFileContentProvider implements VcsFileContentProvider {
     OperationContext context = myVcs.createContext(root, "retrieving content");
     try {
       final long start = System.currentTimeMillis();
+      final GitVcsRoot gitRoot = context.getGitRoot();
+      final String rev = GitUtils.versionRevision(version);
+      byte[] cachedData = getCachedContent(context, gitRoot, rev, filePath);
+      if (cachedData != null) {
+        logPerformance(gitRoot, filePath, start);
+        return cachedData;
+      }
       Repository r = context.getRepository();
       final TreeWalk tw = new TreeWalk(r);
-      final GitVcsRoot gitRoot = context.getGitRoot();
       try {
         logStartProcessingFile(gitRoot, version, filePath);
-        final String rev = GitUtils.versionRevision(version);
         RevCommit c = myVcs.ensureCommitLoaded(context, gitRoot, rev);
         tw.setFilter(PathFilterGroup.createFromStrings(Collections.singleton(filePath)));
         tw.setRecursive(tw.getFilter().shouldBeRecursive());
@@ -83,8 +93,13 @@ public class GitVcsFileContentProvider implements VcsFileContentProvider {
         if (!tw.next()) {
           throw new VcsFileNotFoundException("The file " + filePath + " could not be found in " + rev + gitRoot.debugInfo());
         }
-        final byte[] data = loadObject(gitRoot, r, tw, 0);
+        ObjectId blobId = tw.getObjectId(0);
+        Repository objRep = getRepository(r, tw, 0);
+        final byte[] data = loadObject(gitRoot, objRep, tw.getPathString(), blobId);
         logFileContentLoaded(gitRoot, version, filePath, tw);
+        if (objRep == r) //files from submodules are not cached, their blobs are in other repositories
+          myCache.putBlobId(gitRoot.getRepositoryDir(), rev, filePath, blobId);
+        myCache.putContent(blobId, gitRoot.isAutoCrlf(), data);
         return data;
       } finally {
         logPerformance(gitRoot, filePath, start);
@@ -97,6 +112,126 @@ public class GitVcsFileContentProvider implements VcsFileContentProvider {
     }
   }
 
+  /**
+   * Loads content of several files. Files are grouped by revision, all files of
+   * the same revision are found in a single tree walk and passed to the consumer
+   * as soon as they are loaded.
+   *
+   * @param root VCS root
+   * @param files pairs of file path and revision
+   * @param consumer receives content of the loaded files
+   * @throws VcsFileNotFoundException if some of the files are not found, all found files are passed to the consumer before that
+   * @throws VcsException in case of other errors
+   */
+  public void getContent(@NotNull VcsRoot root,
+                         @NotNull Collection<Pair<String, String>> files,
+                         @NotNull ContentConsumer consumer) throws VcsException {
+    if (files.isEmpty())
+      return;
+    OperationContext context = myVcs.createContext(root, "retrieving content");
+    try {
+      final long start = System.currentTimeMillis();
+      final GitVcsRoot gitRoot = context.getGitRoot();
+      try {
+        List<String> notFound = new ArrayList<String>();
+        for (Map.Entry<String, Set<String>> e : groupByRevision(files).entrySet()) {
+          loadContent(context, gitRoot, e.getKey(), e.getValue(), consumer, notFound);
+        }
+        if (!notFound.isEmpty())
+          throw new VcsFileNotFoundException("The files " + notFound + " could not be found" + gitRoot.debugInfo());
+      } finally {
+        logPerformance(gitRoot, files.size() + " files", start);
+      }
+    } catch (Exception e) {
+      throw context.wrapException(e);
+    } finally {
+      context.close();
+    }
+  }
+
+  @NotNull
+  private Map<String, Set<String>> groupByRevision(@NotNull Collection<Pair<String, String>> files) {
+    Map<String, Set<String>> result = new LinkedHashMap<String, Set<String>>();
+    for (Pair<String, String> file : files) {
+      Set<String> paths = result.get(file.second);
+      if (paths == null) {
+        paths = new LinkedHashSet<String>();
+        result.put(file.second, paths);
+      }
+      paths.add(file.first);
+    }
+    return result;
+  }
+
+  private void loadContent(@NotNull OperationContext context,
+                           @NotNull GitVcsRoot gitRoot,
+                           @NotNull String version,
+                           @NotNull Set<String> paths,
+                           @NotNull ContentConsumer consumer,
+                           @NotNull List<String> notFound) throws Exception {
+    final String rev = GitUtils.versionRevision(version);
+    Set<String> remaining = new HashSet<String>();
+    for (String path : paths) {
+      byte[] cachedData = getCachedContent(context, gitRoot, rev, path);
+      if (cachedData != null) {
+        consumer.consume(path, version, cachedData);
+      } else {
+        remaining.add(path);
+      }
+    }
+    if (remaining.isEmpty())
+      return;
+
+    Repository r = context.getRepository();
+    TreeWalk tw = new TreeWalk(r);
+    try {
+      RevCommit c = myVcs.ensureCommitLoaded(context, gitRoot, rev);
+      tw.setFilter(PathFilterGroup.createFromStrings(remaining));
+      tw.setRecursive(true);
+      context.addTree(gitRoot, tw, r, c, true);
+      while (!remaining.isEmpty() && tw.next()) {
+        String path = tw.getPathString();
+        if (!remaining.remove(path))
+          continue;
+        ObjectId blobId = tw.getObjectId(0);
+        Repository objRep = getRepository(r, tw, 0);
+        byte[] data = loadObject(gitRoot, objRep, path, blobId);
+        logFileContentLoaded(gitRoot, version, path, tw);
+        if (objRep == r)
+          myCache.putBlobId(gitRoot.getRepositoryDir(), rev, path, blobId);
+        myCache.putContent(blobId, gitRoot.isAutoCrlf(), data);
+        consumer.consume(path, version, data);
+      }
+    } finally {
+      tw.release();
+    }
+    for (String path : remaining) {
+      notFound.add(path + " (" + rev + ")");
+    }
+  }
+
+  /**
+   * @return content of the file if its blob id in the specified commit is known, null otherwise
+   */
+  @Nullable
+  private byte[] getCachedContent(@NotNull OperationContext context,
+                                  @NotNull GitVcsRoot root,
+                                  @NotNull String commit,
+                                  @NotNull String filePath) throws Exception {
+    ObjectId blobId = myCache.getBlobId(root.getRepositoryDir(), commit, filePath);
+    if (blobId == null)
+      return null;
+    byte[] data = myCache.getContent(blobId, root.isAutoCrlf());
+    if (data != null)
+      return data;
+    Repository r = context.getRepository();
+    if (!r.hasObject(blobId))
+      return null;
+    data = loadObject(root, r, filePath, blobId);
+    myCache.putContent(blobId, root.isAutoCrlf(), data);
+    return data;
+  }
+
   private void logStartProcessingFile(@NotNull GitVcsRoot root, @NotNull String version, @NotNull String filePath) throws VcsException {
     if (LOG.isDebugEnabled() && myConfig.verboseGetContentLog()) {
       LOG.debug("Getting data from " + version + ":" + filePath + " for " + root.debugInfo());
@@ -116,22 +251,6 @@ public class GitVcsFileContentProvider implements VcsFileContentProvider {
     }
   }
 
-  /**
-   * Load bytes that correspond to the position in the tree walker
-   *
-   * @param r   the initial repository
-   * @param tw  the tree walker
-   * @param nth the tree in the tree wailer
-   * @return loaded bytes
-   * @throws IOException if there is an IO error
-   */
-  private byte[] loadObject(@NotNull GitVcsRoot root, Repository r, TreeWalk tw, final int nth) throws IOException {
-    ObjectId id = tw.getObjectId(nth);
-    Repository objRep = getRepository(r, tw, nth);
-    final String path = tw.getPathString();
-    return loadObject(root, objRep, path, id);
-  }
-
   /**
    * Load object by blob ID
    *
@@ -171,4 +290,12 @@ public class GitVcsFileContentProvider implements VcsFileContentProvider {
     }
     return objRep;
   }
+
+
+  /**
+   * Receives content loaded by {@link GitVcsFileContentProvider#getContent(VcsRoot, Collection, ContentConsumer)}
+   */
+  public interface ContentConsumer {
+    void consume(@NotNull String filePath, @NotNull String version, @NotNull byte[] content) throws VcsException;
+  }
 }
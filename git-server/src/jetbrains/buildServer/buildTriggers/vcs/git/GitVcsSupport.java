@@ -20,13 +20,17 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import com.jcraft.jsch.JSchException;
 import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.ConvertedSizeCache;
 import jetbrains.buildServer.buildTriggers.vcs.git.patch.GitPatchBuilder;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
 import jetbrains.buildServer.util.cache.ResetCacheRegister;
+import jetbrains.buildServer.util.filters.Filter;
 import jetbrains.buildServer.vcs.*;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import org.eclipse.jgit.errors.NotSupportedException;
@@ -67,6 +71,16 @@ public class GitVcsSupport extends ServerVcsSupport
   private final FetchCommand myFetchCommand;
   private final RepositoryManager myRepositoryManager;
   private final GitMapFullPath myMapFullPath;
+  private final CommitChangesCache myCommitChangesCache;
+  private final RepositoryStateCache myStateCache = new RepositoryStateCache();
+  private final SharedRemoteRefs mySharedRemoteRefs;
+  private final FetchScheduler myFetchScheduler;
+  private final FetchCoalescer myFetchCoalescer = new FetchCoalescer();
+  private final ConvertedSizeCache myConvertedSizeCache = new ConvertedSizeCache();
+  private final FileContentCache myFileContentCache;
+  private final TreeListingCache myTreeListingCache;
+  private ThreadPoolExecutor myCollectChangesExecutor;//guarded by this
+  private ThreadPoolExecutor myPatchContentLoaderExecutor;//guarded by this
   private Collection<GitServerExtension> myExtensions;
 
   public GitVcsSupport(@NotNull ServerPluginConfig config,
@@ -80,8 +94,13 @@ public class GitVcsSupport extends ServerVcsSupport
     myFetchCommand = fetchCommand;
     myRepositoryManager = repositoryManager;
     myMapFullPath = mapFullPath;
+    myCommitChangesCache = new CommitChangesCache(config);
+    mySharedRemoteRefs = new SharedRemoteRefs(config);
+    myFileContentCache = new FileContentCache(config);
+    myTreeListingCache = new TreeListingCache(config);
+    myFetchScheduler = new FetchScheduler(config);
     setStreamFileThreshold();
-    resetCacheManager.registerHandler(new GitResetCacheHandler(repositoryManager));
+    resetCacheManager.registerHandler(new GitResetCacheHandler(repositoryManager, myStateCache));
     myMapFullPath.setGitVcs(this);
   }
 
@@ -120,25 +139,38 @@ public class GitVcsSupport extends ServerVcsSupport
   public RepositoryStateData getCurrentState(@NotNull VcsRoot root) throws VcsException {
     GitVcsRoot gitRoot = new GitVcsRoot(myRepositoryManager, root);
     String refInRoot = gitRoot.getRef();
-    String fullRef = GitUtils.expandRef(refInRoot);
-    Map<String, String> branchRevisions = new HashMap<String, String>();
-    for (Ref ref : getRemoteRefs(root).values()) {
-      if (!ref.getName().startsWith("ref"))
-        continue;
-      if (!gitRoot.isReportTags() && isTag(ref) && !fullRef.equals(ref.getName()))
-        continue;
-      branchRevisions.put(ref.getName(), getRevision(ref));
-    }
-    if (branchRevisions.get(fullRef) == null) {
+    final String fullRef = GitUtils.expandRef(refInRoot);
+    final boolean reportTags = gitRoot.isReportTags();
+    String key = getStateKey(gitRoot, fullRef);
+    RepositoryStateData state = myStateCache.getState(key, root.getId(), fullRef, getRemoteRefs(root).values(), new Filter<Ref>() {
+      public boolean accept(@NotNull Ref ref) {
+        if (!ref.getName().startsWith("ref"))
+          return false;
+        return reportTags || !isTag(ref) || fullRef.equals(ref.getName());
+      }
+    });
+    if (state.getBranchRevisions().get(fullRef) == null) {
       throw new VcsException("Cannot find revision of the default branch '" + refInRoot + "' of vcs root " + LogUtil.describe(root));
     }
-    return RepositoryStateData.createVersionState(fullRef, branchRevisions);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Current state of " + LogUtil.describe(root) + " is computed, changes since the previous state: " + myStateCache.getLastDelta(root.getId()));
+    return state;
+  }
+
+  /**
+   * @param root root of interest
+   * @return refs added, updated and removed since the previous {@link #getCurrentState(VcsRoot)}
+   * call for the root or null if current state of the root was never computed
+   * @throws VcsException if root settings are invalid
+   */
+  @Nullable
+  public RepositoryStateDelta getLastStateDelta(@NotNull VcsRoot root) {
+    return myStateCache.getLastDelta(root.getId());
   }
 
-  private String getRevision(@NotNull Ref ref) {
-    if (isTag(ref) && ref.getPeeledObjectId() != null)
-      return ref.getPeeledObjectId().name();
-    return ref.getObjectId().name();
+  @NotNull
+  private String getStateKey(@NotNull GitVcsRoot gitRoot, @NotNull String fullRef) {
+    return gitRoot.getRepositoryFetchURL().toString() + "#" + fullRef + (gitRoot.isReportTags() ? "#tags" : "");
   }
 
   public void buildPatch(@NotNull VcsRoot root,
@@ -150,9 +182,10 @@ public class GitVcsSupport extends ServerVcsSupport
     String fromRevision = fromVersion != null ? GitUtils.versionRevision(fromVersion) : null;
     String toRevision = GitUtils.versionRevision(toVersion);
     logBuildPatch(root, fromRevision, toRevision);
-    GitPatchBuilder gitPatchBuilder = new GitPatchBuilder(myConfig, context, builder, fromRevision, toRevision, checkoutRules);
+    GitPatchBuilder gitPatchBuilder = new GitPatchBuilder(myConfig, context, builder, fromRevision, toRevision, checkoutRules, myConvertedSizeCache,
+                                                            getPatchContentLoaderExecutor());
     try {
-      ensureRevCommitLoaded(context, context.getGitRoot(), toRevision);
+      ensureRevCommitLoaded(context, context.getGitRoot(), toRevision, FetchScheduler.Priority.BUILD);
       gitPatchBuilder.buildPatch();
     } catch (Exception e) {
       throw context.wrapException(e);
@@ -178,38 +211,81 @@ public class GitVcsSupport extends ServerVcsSupport
                                @NotNull GitVcsRoot root,
                                @NotNull String revision) throws Exception {
     final String commit = GitUtils.versionRevision(revision);
-    return ensureRevCommitLoaded(context, root, commit);
+    return ensureRevCommitLoaded(context, root, commit, FetchScheduler.Priority.BACKGROUND);
   }
 
   @NotNull
   private RevCommit ensureRevCommitLoaded(@NotNull OperationContext context,
                                           @NotNull GitVcsRoot root,
-                                          @NotNull String commitSHA) throws Exception {
+                                          @NotNull String commitSHA,
+                                          @NotNull FetchScheduler.Priority fetchPriority) throws Exception {
     Repository db = context.getRepository(root);
     try {
-      return getCommit(db, commitSHA);
+      return context.getCommit(db, commitSHA);
     } catch (IOException ex) {
       //ignore error, will try to fetch
     }
 
     LOG.debug("Cannot find commit " + commitSHA + " in repository " + root.debugInfo() + ", fetch branch " + root.getRef());
-    fetchBranchData(root, db);
+    fetchBranchData(root, db, fetchPriority);
 
     try {
-      return getCommit(db, commitSHA);
+      return context.getCommit(db, commitSHA);
     } catch (IOException e) {
-      LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
-                " of repository " + root.debugInfo() + ", fetch all branches");
-      RefSpec spec = new RefSpec().setSourceDestination("refs/heads/*", "refs/heads/*").setForceUpdate(true);
-      fetch(db, root.getRepositoryFetchURL(), spec, root.getAuthSettings());
+      List<RefSpec> specs = getRefSpecsForCommit(db, root, commitSHA);
+      if (specs == null) {
+        LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
+                  " of repository " + root.debugInfo() + ", fetch all branches");
+        specs = Collections.singletonList(new RefSpec().setSourceDestination("refs/heads/*", "refs/heads/*").setForceUpdate(true));
+      } else {
+        LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
+                  " of repository " + root.debugInfo() + ", fetch refs which can contain it: " + specs);
+      }
+      if (!specs.isEmpty())
+        fetch(db, root.getRepositoryFetchURL(), specs, root.getAuthSettings(), fetchPriority);
       try {
-        return getCommit(db, commitSHA);
+        return context.getCommit(db, commitSHA);
       } catch (IOException e1) {
         throw new VcsException("Cannot find commit " + commitSHA + " in repository " + root.debugInfo());
       }
     }
   }
 
+  /**
+   * Finds refs in the remote repository which can contain the commit using the advertised refs.
+   * If some refs point to the commit, only they are returned. Otherwise returns branches
+   * whose tips are missing in the local repository: commit cannot be reachable from other
+   * branches, since their tips and all their history are already fetched.
+   *
+   * @return refspecs for refs which can contain the commit or null if remote refs cannot be retrieved
+   */
+  @Nullable
+  private List<RefSpec> getRefSpecsForCommit(@NotNull Repository db, @NotNull GitVcsRoot root, @NotNull String commitSHA) {
+    Map<String, Ref> remoteRefs;
+    try {
+      remoteRefs = getRemoteRefs(db, root);
+    } catch (Exception e) {
+      LOG.debug("Cannot get remote refs of repository " + root.debugInfo(), e);
+      return null;
+    }
+    ObjectId commit = ObjectId.fromString(commitSHA);
+    List<RefSpec> pointToCommit = new ArrayList<RefSpec>();
+    List<RefSpec> unknownTips = new ArrayList<RefSpec>();
+    for (Ref ref : remoteRefs.values()) {
+      String name = ref.getName();
+      ObjectId id = ref.getObjectId();
+      if (!name.startsWith("refs/") || name.endsWith("^{}") || id == null)
+        continue;
+      RefSpec spec = new RefSpec().setSourceDestination(name, name).setForceUpdate(true);
+      if (commit.equals(id) || commit.equals(ref.getPeeledObjectId())) {
+        pointToCommit.add(spec);
+      } else if (name.startsWith("refs/heads/") && !db.hasObject(id)) {
+        unknownTips.add(spec);
+      }
+    }
+    return !pointToCommit.isEmpty() ? pointToCommit : unknownTips;
+  }
+
   @NotNull
   public RevCommit getCommit(@NotNull Repository repository, @NotNull String commitSHA) throws IOException {
     return getCommit(repository, ObjectId.fromString(commitSHA));
@@ -323,29 +399,71 @@ public class GitVcsSupport extends ServerVcsSupport
    *
    * @param root git root
    * @param repository the repository
+   * @param priority fetch priority
    * @throws Exception if there is a problem with fetching data
    */
-  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository) throws Exception {
+  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository, @NotNull FetchScheduler.Priority priority) throws Exception {
     final String refName = GitUtils.expandRef(root.getRef());
     RefSpec spec = new RefSpec().setSource(refName).setDestination(refName).setForceUpdate(true);
-    fetch(repository, root.getRepositoryFetchURL(), spec, root.getAuthSettings());
+    fetch(repository, root.getRepositoryFetchURL(), Collections.singletonList(spec), root.getAuthSettings(), priority);
   }
 
 
   public void fetch(Repository db, URIish fetchURI, Collection<RefSpec> refspecs, AuthSettings auth) throws NotSupportedException, VcsException, TransportException {
+    fetch(db, fetchURI, refspecs, auth, FetchScheduler.Priority.BACKGROUND);
+  }
+
+
+  /**
+   * Fetches into the local repository, number of concurrent fetches is limited by {@link FetchScheduler},
+   * concurrent fetches into the same repository are merged by {@link FetchCoalescer}
+   */
+  public void fetch(@NotNull final Repository db,
+                    @NotNull final URIish fetchURI,
+                    @NotNull Collection<RefSpec> refspecs,
+                    @NotNull final AuthSettings auth,
+                    @NotNull FetchScheduler.Priority priority) throws NotSupportedException, VcsException, TransportException {
     File repositoryDir = db.getDirectory();
     assert repositoryDir != null : "Non-local repository";
+    String key = fetchURI.toString() + "\n" + new TreeMap<String, String>(auth.toMap());
+    myFetchCoalescer.fetch(repositoryDir, key, refspecs, priority, new FetchCoalescer.Fetch() {
+      public void fetch(@NotNull Collection<RefSpec> refspecs, @NotNull FetchScheduler.Priority priority) throws NotSupportedException, VcsException, TransportException {
+        doFetch(db, fetchURI, refspecs, auth, priority);
+      }
+    });
+    //fetch could be run by another request with its own repository instance
+    GitServerUtil.openNewPacks(db);
+  }
+
+
+  private void doFetch(@NotNull Repository db,
+                       @NotNull URIish fetchURI,
+                       @NotNull Collection<RefSpec> refspecs,
+                       @NotNull AuthSettings auth,
+                       @NotNull FetchScheduler.Priority priority) throws NotSupportedException, VcsException, TransportException {
+    File repositoryDir = db.getDirectory();
     Lock rmLock = myRepositoryManager.getRmLock(repositoryDir).readLock();
     rmLock.lock();
     try {
       final long start = System.currentTimeMillis();
-      synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
+      Lock writeLock = myRepositoryManager.getWriteLock(repositoryDir);
+      writeLock.lock();
+      try {
         final long finish = System.currentTimeMillis();
-        Map<String, Ref> oldRefs = new HashMap<String, Ref>(db.getAllRefs());
+        Map<String, Ref> oldRefs = db.getAllRefs();
         PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms");
-        myFetchCommand.fetch(db, fetchURI, refspecs, auth);
-        Map<String, Ref> newRefs = new HashMap<String, Ref>(db.getAllRefs());
-        myMapFullPath.invalidateRevisionsCache(db, oldRefs, newRefs);
+        String host = fetchURI.getHost() != null ? fetchURI.getHost() : "";
+        FetchScheduler.Ticket ticket = myFetchScheduler.acquire(host, priority);
+        try {
+          PERFORMANCE_LOG.debug("[waitForFetchSlot] repository: " + repositoryDir.getAbsolutePath() + ", priority: " + priority +
+                                ", took " + ticket.getWaitMillis() + "ms, fetches in queue: " + myFetchScheduler.getQueueSize());
+          myFetchCommand.fetch(db, fetchURI, refspecs, auth);
+        } finally {
+          myFetchScheduler.release(ticket);
+        }
+        myMapFullPath.invalidateRevisionsCache(db, oldRefs, db.getAllRefs());
+      } finally {
+        writeLock.unlock();
       }
     } finally {
       rmLock.unlock();
@@ -382,6 +500,14 @@ public class GitVcsSupport extends ServerVcsSupport
     return this;
   }
 
+  /**
+   * @return scheduler of fetches, provides queue size and wait time
+   */
+  @NotNull
+  public FetchScheduler getFetchScheduler() {
+    return myFetchScheduler;
+  }
+
   public OperationContext createContext(VcsRoot root, String operation) {
     return new OperationContext(this, myRepositoryManager, root, operation);
   }
@@ -393,7 +519,86 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @NotNull
   public VcsFileContentProvider getContentProvider() {
-    return new GitVcsFileContentProvider(this, myConfig);
+    return new GitVcsFileContentProvider(this, myConfig, myFileContentCache);
+  }
+
+  @NotNull
+  CommitChangesCache getCommitChangesCache() {
+    return myCommitChangesCache;
+  }
+
+  /**
+   * @return executor for computing commit diffs in parallel or null
+   * if diffs should be computed in the thread collecting changes
+   */
+  @Nullable
+  synchronized ExecutorService getCollectChangesExecutor() {
+    int threadCount = myConfig.getCollectChangesThreadCount();
+    if (threadCount <= 1)
+      return null;
+    if (myCollectChangesExecutor != null) {
+      setThreadCount(myCollectChangesExecutor, threadCount);
+    } else {
+      myCollectChangesExecutor = createExecutor(threadCount, "Git collect changes ");
+    }
+    return myCollectChangesExecutor;
+  }
+
+  /**
+   * @return executor loading blobs for all patches built by the server or null
+   * if blobs should be loaded by the patch building thread
+   */
+  @Nullable
+  synchronized Executor getPatchContentLoaderExecutor() {
+    int threadCount = myConfig.getPatchContentLoaderThreads();
+    if (threadCount <= 1)
+      return null;
+    if (myPatchContentLoaderExecutor != null) {
+      setThreadCount(myPatchContentLoaderExecutor, threadCount);
+    } else {
+      myPatchContentLoaderExecutor = createExecutor(threadCount, "Git patch content loader ");
+    }
+    return myPatchContentLoaderExecutor;
+  }
+
+  @NotNull
+  private static ThreadPoolExecutor createExecutor(int threadCount, @NotNull final String threadNamePrefix) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger myThreadNumber = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, threadNamePrefix + myThreadNumber.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  //thread count can be changed at runtime
+  private static void setThreadCount(@NotNull ThreadPoolExecutor executor, int threadCount) {
+    if (threadCount > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threadCount);
+      executor.setCorePoolSize(threadCount);
+    } else if (threadCount < executor.getMaximumPoolSize()) {
+      executor.setCorePoolSize(threadCount);
+      executor.setMaximumPoolSize(threadCount);
+    }
+  }
+
+  /**
+   * Stops threads started by the plugin, called on server shutdown
+   */
+  public synchronized void dispose() {
+    if (myCollectChangesExecutor != null) {
+      myCollectChangesExecutor.shutdownNow();
+      myCollectChangesExecutor = null;
+    }
+    if (myPatchContentLoaderExecutor != null) {
+      myPatchContentLoaderExecutor.shutdownNow();
+      myPatchContentLoaderExecutor = null;
+    }
   }
 
   @NotNull
@@ -461,7 +666,17 @@ public class GitVcsSupport extends ServerVcsSupport
 
 
   @NotNull
-  private Map<String, Ref> getRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
+  private Map<String, Ref> getRemoteRefs(@NotNull final Repository db, @NotNull final GitVcsRoot gitRoot) throws Exception {
+    return mySharedRemoteRefs.getRefs(gitRoot, new Callable<Map<String, Ref>>() {
+      public Map<String, Ref> call() throws Exception {
+        return Collections.unmodifiableMap(listRemoteRefs(db, gitRoot));
+      }
+    });
+  }
+
+
+  @NotNull
+  private Map<String, Ref> listRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
     int attemptsLeft = myConfig.getConnectionRetryAttempts();
     while (true) {
       final long start = System.currentTimeMillis();
@@ -525,7 +740,7 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @Override
   public ListFilesPolicy getListFilesPolicy() {
-    return new GitListFilesSupport(this);
+    return new GitListFilesSupport(this, myTreeListingCache);
   }
 
   @NotNull
@@ -32,12 +32,20 @@ import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author dmitry.neverov
@@ -47,6 +55,7 @@ class ModificationDataRevWalk extends RevWalk {
   private static final Logger LOG = Logger.getInstance(ModificationDataRevWalk.class.getName());
 
   private final ServerPluginConfig myConfig;
+  private final CommitChangesCache myChangesCache;
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final Repository myRepository;
@@ -56,9 +65,12 @@ class ModificationDataRevWalk extends RevWalk {
   private int myNumberOfCommitsToVisit = -1;
 
 
-  ModificationDataRevWalk(@NotNull ServerPluginConfig config, @NotNull OperationContext context) throws VcsException {
+  ModificationDataRevWalk(@NotNull ServerPluginConfig config,
+                          @NotNull CommitChangesCache changesCache,
+                          @NotNull OperationContext context) throws VcsException {
     super(context.getRepository());
     myConfig = config;
+    myChangesCache = changesCache;
     myContext = context;
     myGitRoot = context.getGitRoot();
     myRepository = context.getRepository();
@@ -86,18 +98,119 @@ class ModificationDataRevWalk extends RevWalk {
     if (myCurrentCommit == null)
       throw new IllegalStateException("Current commit is null");
 
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Collecting changes in commit " + myCurrentCommit.getId().name() + ":" + myCurrentCommit.getShortMessage() +
-                " (" + myCurrentCommit.getCommitterIdent().getWhen() + ") for " + myGitRoot.debugInfo());
-    }
+    logCollectingChanges(myCurrentCommit);
     String currentVersion = myCurrentCommit.getId().name();
     String parentVersion = getFirstParentVersion(myCurrentCommit);
-    List<VcsChange> changes = getCommitChanges(myCurrentCommit, currentVersion, parentVersion);
-    ModificationData result = new ModificationData(myCurrentCommit.getAuthorIdent().getWhen(), changes, myCurrentCommit.getFullMessage(),
-                                                   GitServerUtil.getUser(myGitRoot, myCurrentCommit), myGitRoot.getOriginalRoot(),
-                                                   myCurrentCommit.getId().name(), myCurrentCommit.getId().name());
-    if (myCurrentCommit.getParentCount() > 0) {
-      for (RevCommit parent : myCurrentCommit.getParents()) {
+    List<VcsChange> changes = getCachedCommitChanges(myCurrentCommit, currentVersion, parentVersion);
+    return createModificationData(myCurrentCommit, changes);
+  }
+
+
+  /**
+   * Creates modification data for all commits left in the walk.
+   *
+   * If executor is specified, the walk only enumerates commits and changes of
+   * the commits are computed in the executor, every diff uses its own tree walk
+   * and object reader. Diffs are computed sequentially if executor is not
+   * specified or submodules are checked out, since submodule resolution uses
+   * the operation context which is not thread-safe.
+   *
+   * @param executor executor for commit diffs
+   * @return modification data in the order of the walk
+   */
+  @NotNull
+  public List<ModificationData> collectModificationData(@Nullable ExecutorService executor) throws IOException, VcsException {
+    List<ModificationData> result = new ArrayList<ModificationData>();
+    if (executor == null || myGitRoot.isCheckoutSubmodules()) {
+      while (next() != null) {
+        result.add(createModificationData());
+      }
+      return result;
+    }
+
+    List<RevCommit> commits = new ArrayList<RevCommit>();
+    List<Future<List<VcsChange>>> commitChanges = new ArrayList<Future<List<VcsChange>>>();
+    final AtomicBoolean stopped = new AtomicBoolean();
+    try {
+      RevCommit commit;
+      while ((commit = next()) != null) {
+        logCollectingChanges(commit);
+        final RevCommit c = commit;
+        final String currentVersion = c.getId().name();
+        final String parentVersion = getFirstParentVersion(c);
+        for (RevCommit parent : c.getParents()) {
+          parseBody(parent);//RevWalk is not thread-safe, parse parents before diff
+        }
+        commits.add(c);
+        commitChanges.add(executor.submit(new Callable<List<VcsChange>>() {
+          public List<VcsChange> call() throws Exception {
+            if (stopped.get())
+              return Collections.emptyList();
+            return getCachedCommitChanges(c, currentVersion, parentVersion);
+          }
+        }));
+      }
+      for (int i = 0; i < commits.size(); i++) {
+        result.add(createModificationData(commits.get(i), getChanges(commitChanges.get(i))));
+      }
+      return result;
+    } finally {
+      //tasks use the repository which is closed by the caller after we return,
+      //so don't return until all of them finish; not started tasks exit immediately
+      stopped.set(true);
+      awaitCompletion(commitChanges);
+    }
+  }
+
+
+  private void awaitCompletion(@NotNull List<Future<List<VcsChange>>> tasks) {
+    boolean interrupted = false;
+    for (Future<List<VcsChange>> task : tasks) {
+      while (true) {
+        try {
+          task.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          break;//error is reported by getChanges() if needed
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+
+  @NotNull
+  private List<VcsChange> getChanges(@NotNull Future<List<VcsChange>> changes) throws IOException, VcsException {
+    try {
+      return changes.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while collecting changes for " + myGitRoot.debugInfo(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof VcsException)
+        throw (VcsException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new VcsException(cause);
+    }
+  }
+
+
+  @NotNull
+  private ModificationData createModificationData(@NotNull RevCommit commit, @NotNull List<VcsChange> changes) throws IOException {
+    ModificationData result = new ModificationData(commit.getAuthorIdent().getWhen(), changes, commit.getFullMessage(),
+                                                   GitServerUtil.getUser(myGitRoot, commit), myGitRoot.getOriginalRoot(),
+                                                   commit.getId().name(), commit.getId().name());
+    if (commit.getParentCount() > 0) {
+      for (RevCommit parent : commit.getParents()) {
         parseBody(parent);
         result.addParentRevision(parent.getId().name());
       }
@@ -108,6 +221,14 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  private void logCollectingChanges(@NotNull RevCommit commit) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Collecting changes in commit " + commit.getId().name() + ":" + commit.getShortMessage() +
+                " (" + commit.getCommitterIdent().getWhen() + ") for " + myGitRoot.debugInfo());
+    }
+  }
+
+
   private boolean shouldLimitByNumberOfCommits() {
     return myNumberOfCommitsToVisit != -1;
   }
@@ -130,22 +251,47 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  /**
+   * Get changes for the commit from the changes cache, computes and caches them
+   * if they are not found. Changes are cached only if there were no errors in
+   * submodules, otherwise they can be different once submodules are fixed.
+   */
+  private List<VcsChange> getCachedCommitChanges(final RevCommit commit,
+                                                 final String currentVersion,
+                                                 final String parentVersion) throws IOException, VcsException {
+    File repositoryDir = myRepository.getDirectory();
+    SubmodulesCheckoutPolicy policy = myGitRoot.getSubmodulesCheckoutPolicy();
+    List<VcsChange> changes = myChangesCache.getChanges(repositoryDir, currentVersion, policy);
+    if (changes != null) {
+      if (LOG.isDebugEnabled())
+        LOG.debug("Use cached changes of commit " + currentVersion + " for " + myGitRoot.debugInfo());
+      return changes;
+    }
+    IgnoreSubmoduleErrorsTreeFilter filter = new IgnoreSubmoduleErrorsTreeFilter(myGitRoot);
+    changes = getCommitChanges(commit, currentVersion, parentVersion, filter);
+    if (!filter.hasBrokenSubmodules())
+      myChangesCache.putChanges(repositoryDir, currentVersion, policy, changes);
+    return changes;
+  }
+
+
   /**
    * Get changes for the commit
    *
    * @param commit current commit
    * @param currentVersion teamcity version of current commit (sha@time)
    * @param parentVersion parent version to use in VcsChange objects
+   * @param filter filter to use in tree walk
    * @return the commit changes
    */
   private List<VcsChange> getCommitChanges(final RevCommit commit,
                                            final String currentVersion,
-                                           final String parentVersion) throws IOException, VcsException {
+                                           final String parentVersion,
+                                           final IgnoreSubmoduleErrorsTreeFilter filter) throws IOException, VcsException {
     List<VcsChange> changes = new ArrayList<VcsChange>();
     String repositoryDebugInfo = myGitRoot.debugInfo();
     VcsChangeTreeWalk tw = new VcsChangeTreeWalk(myConfig, myRepository, repositoryDebugInfo);
     try {
-      IgnoreSubmoduleErrorsTreeFilter filter = new IgnoreSubmoduleErrorsTreeFilter(myGitRoot);
       tw.setFilter(filter);
       tw.setRecursive(true);
       myContext.addTree(myGitRoot, tw, myRepository, commit, shouldIgnoreSubmodulesErrors());
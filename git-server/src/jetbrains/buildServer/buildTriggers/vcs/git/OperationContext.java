@@ -23,8 +23,11 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.jetbrains.annotations.NotNull;
@@ -34,7 +37,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.SubmodulesCheckoutPolicy.getPolicyWithErrorsIgnored;
@@ -52,6 +57,8 @@ public class OperationContext {
   private final VcsRoot myRoot;
   private final String myOperation;
   private final Map<String, Repository> myRepositories = new HashMap<String, Repository>(); //repository path -> repository
+  private final Map<String, List<RevWalk>> myIdleRevWalks = new HashMap<String, List<RevWalk>>(); //repository path -> walks not used at the moment, guarded by myIdleRevWalks
+  private final List<RevWalk> myRevWalks = new ArrayList<RevWalk>(); //all walks created by the operation, guarded by myIdleRevWalks
 
   public OperationContext(@NotNull final GitVcsSupport support,
                           @NotNull final RepositoryManager repositoryManager,
@@ -138,6 +145,7 @@ public class OperationContext {
    * Release all resources acquired during operation
    */
   public void close() {
+    releaseRevWalks();
     RuntimeException e = null;
     for (Repository r : myRepositories.values()) {
       try {
@@ -182,9 +190,64 @@ public class OperationContext {
   @Nullable
   public RevCommit findCommit(@NotNull Repository r, String sha) {
     try {
-      return mySupport.getCommit(r, sha);
+      return getCommit(r, sha);
     } catch (Exception e) {
       return null;
     }
   }
+
+  @NotNull
+  public RevCommit getCommit(@NotNull Repository r, @NotNull String sha) throws IOException {
+    return getCommit(r, ObjectId.fromString(sha));
+  }
+
+  /**
+   * Parses commit using a RevWalk shared by all commit parses in the repository
+   * during the operation, so their object reader and parsed commits are reused.
+   * Returned commits should not be passed to other RevWalks, use their ids instead.
+   */
+  @NotNull
+  public RevCommit getCommit(@NotNull Repository r, @NotNull AnyObjectId commitId) throws IOException {
+    RevWalk walk = takeRevWalk(r);
+    try {
+      return walk.parseCommit(commitId);
+    } finally {
+      returnRevWalk(r, walk);
+    }
+  }
+
+  //walk is not thread-safe, concurrent parses in the same repository get different walks
+  @NotNull
+  private RevWalk takeRevWalk(@NotNull Repository r) {
+    synchronized (myIdleRevWalks) {
+      List<RevWalk> walks = myIdleRevWalks.get(r.getDirectory().getPath());
+      if (walks != null && !walks.isEmpty())
+        return walks.remove(walks.size() - 1);
+      RevWalk walk = new RevWalk(r);
+      myRevWalks.add(walk);
+      return walk;
+    }
+  }
+
+  private void returnRevWalk(@NotNull Repository r, @NotNull RevWalk walk) {
+    synchronized (myIdleRevWalks) {
+      String path = r.getDirectory().getPath();
+      List<RevWalk> walks = myIdleRevWalks.get(path);
+      if (walks == null) {
+        walks = new ArrayList<RevWalk>();
+        myIdleRevWalks.put(path, walks);
+      }
+      walks.add(walk);
+    }
+  }
+
+  private void releaseRevWalks() {
+    synchronized (myIdleRevWalks) {
+      for (RevWalk walk : myRevWalks) {
+        walk.release();
+      }
+      myRevWalks.clear();
+      myIdleRevWalks.clear();
+    }
+  }
 }
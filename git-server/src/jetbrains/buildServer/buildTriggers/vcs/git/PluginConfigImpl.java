@@ -86,6 +86,18 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.stream.file.threshold.mb", 128);
   }
 
+  public int getPatchContentLoaderThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.buildPatch.contentLoaderThreads", 4);
+  }
+
+  public long getFileContentCacheSizeBytes() {
+    return TeamCityProperties.getInteger("teamcity.git.fileContent.cache.size.mb", 32) * 1024L * 1024L;
+  }
+
+  public long getTreeListingCacheSizeBytes() {
+    return TeamCityProperties.getInteger("teamcity.git.listFiles.cache.size.mb", 8) * 1024L * 1024L;
+  }
+
 
   public int getFetchTimeout() {
     return TeamCityProperties.getInteger("teamcity.git.fetch.timeout", 600);
@@ -123,6 +135,16 @@ public class PluginConfigImpl implements ServerPluginConfig {
   }
 
 
+  public int getFetchProcessMaxMemoryLimitMb() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.process.max.memory.limit.mb", 2048);
+  }
+
+
+  public int getFetchProcessMemoryBudgetMb() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.process.memory.budget.mb", 0);
+  }
+
+
   public boolean isSeparateProcessForFetch() {
     return TeamCityProperties.getBooleanOrTrue("teamcity.git.fetch.separate.process");
   }
@@ -167,6 +189,30 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return Fetcher.class.getName();
   }
 
+  public String getFetchWorkerClassName() {
+    return FetchWorker.class.getName();
+  }
+
+  public int getFetchWorkersMaxIdle() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.maxIdle", 2);
+  }
+
+  public int getFetchWorkerIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.idleTimeoutSeconds", 300);
+  }
+
+  public int getFetchWorkerMaxFetches() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.maxFetches", 100);
+  }
+
+  public int getFetchConcurrencyLimit() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.concurrency.limit", 0);
+  }
+
+  public int getFetchConcurrencyLimitPerHost() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.concurrency.limitPerHost", 4);
+  }
+
   public int getFixedSubmoduleCommitSearchDepth() {
     return TeamCityProperties.getInteger("teamcity.server.git.fixed.submodule.commit.search.depth", 100);
   }
@@ -181,6 +227,10 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return days * Dates.ONE_DAY;
   }
 
+  public int getMirrorLastUsedTimeSaveIntervalSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.mirror.lastUsedTime.saveInterval.seconds", 60);
+  }
+
   @NotNull
   public List<String> getProxySettingsForSeparateProcess() {
     List<String> proxySettings = new ArrayList<String>();
@@ -197,6 +247,14 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.from.version.not.found.commits.number", 10);
   }
 
+  public int getSshSessionPoolSizePerHost() {
+    return TeamCityProperties.getInteger("teamcity.git.ssh.pool.maxIdleSessionsPerHost", 4);
+  }
+
+  public int getSshSessionIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.ssh.pool.idleTimeoutSeconds", 60);
+  }
+
   public Proxy getJschProxy() {
     String sshProxyType = TeamCityProperties.getProperty(TEAMCITY_GIT_SSH_PROXY_TYPE);
     if (isEmpty(sshProxyType))
@@ -284,6 +342,18 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.map.full.path.revision.cache.size", 100);
   }
 
+  public int getCommitChangesCacheSize() {
+    return TeamCityProperties.getInteger("teamcity.git.commit.changes.cache.size", 10000);
+  }
+
+  public int getCollectChangesThreadCount() {
+    return TeamCityProperties.getInteger("teamcity.git.collect.changes.threads", 1);
+  }
+
+  public long getRemoteRefsSharingWindowMillis() {
+    return TeamCityProperties.getInteger("teamcity.git.remoteRefs.sharingWindowMillis", 0);
+  }
+
   public long getConnectionRetryIntervalMillis() {
     return TeamCityProperties.getInteger("teamcity.git.connectionRetryIntervalSeconds", 2) * 1000L;
   }
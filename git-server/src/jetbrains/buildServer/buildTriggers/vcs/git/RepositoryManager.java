@@ -23,6 +23,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 /**
@@ -41,11 +42,12 @@ public interface RepositoryManager extends MirrorManager {
 
   void closeRepository(@NotNull Repository repository);
 
+  /**
+   * Locks of a mirror are released automatically when nobody holds or waits for them
+   */
   @NotNull
-  public Object getWriteLock(@NotNull File dir);
+  public Lock getWriteLock(@NotNull File dir);
 
   @NotNull
   public ReadWriteLock getRmLock(@NotNull File dir);
-
-  void cleanLocksFor(@NotNull File dir);
 }
@@ -17,7 +17,6 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
@@ -29,12 +28,17 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -46,30 +50,21 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
   private final MirrorManager myMirrorManager;
   private final long myExpirationTimeout;
+  private final int myLastUsedTimeSaveInterval;
+  private ScheduledExecutorService myLastUsedTimeSaver;//guarded by this
+  private final File myCanonicalBaseMirrorsDir;
   /**
-   * During repository creation jgit checks existence of some files and directories. When several threads
-   * try to create repository concurrently some of them could see it in inconsistent state. This map contains
-   * locks for repository creation, so only one thread at a time will create repository at give dir.
+   * Locks of mirrors, the key is a canonical mirror dir. Entry is counted from the moment
+   * a thread starts waiting for any of its locks till the lock is released, entry is removed
+   * when nobody holds or waits for its locks.
    */
-  private final ConcurrentMap<File, Object> myCreateLocks = new ConcurrentHashMap<File, Object>();
-  /**
-   * In the past jgit has some concurrency problems, in order to fix them we do only one fetch at a time.
-   * Also several concurrent fetches in single repository does not make sense since only one of them succeed.
-   * This map contains locks used for fetch and push operations.
-   */
-  private final ConcurrentMap<File, Object> myWriteLocks = new ConcurrentHashMap<File, Object>();
-  /**
-   * During cleanup unused bare repositories are removed. This map contains rw locks for repository removal.
-   * Fetch/push/create operations should be done with read lock hold, remove operation is done with write lock hold.
-   * @see Cleanup
-   */
-  private final ConcurrentMap<File, ReadWriteLock> myRmLocks = new ConcurrentHashMap<File, ReadWriteLock>();
-
-  private final ConcurrentMap<File, Object> myUpdateLastUsedTimeLocks = new ConcurrentHashMap<File, Object>();
+  private final Map<File, MirrorLocks> myLocks = new HashMap<File, MirrorLocks>();//guarded by myLocks
 
   public RepositoryManagerImpl(@NotNull final ServerPluginConfig config, @NotNull final MirrorManager mirrorManager) {
     myExpirationTimeout = config.getMirrorExpirationTimeoutMillis();
+    myLastUsedTimeSaveInterval = config.getMirrorLastUsedTimeSaveIntervalSeconds();
     myMirrorManager = mirrorManager;
+    myCanonicalBaseMirrorsDir = getCanonicalFile(mirrorManager.getBaseMirrorsDir());
   }
 
 
@@ -96,6 +91,7 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
   @NotNull
   public List<File> getExpiredDirs() {
+    addMissingLastUsedTimes();
     long now = System.currentTimeMillis();
     List<File> result = new ArrayList<File>();
     final File[] files = myMirrorManager.getBaseMirrorsDir().listFiles();
@@ -156,10 +152,14 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     Lock rmLock = getRmLock(dir).readLock();
     rmLock.lock();
     try {
-      synchronized (getCreateLock(dir)) {
+      Lock createLock = getCreateLock(dir);
+      createLock.lock();
+      try {
         Repository result = GitServerUtil.getRepository(dir, fetchUrl);
         RepositoryCache.register(result);
         return result;
+      } finally {
+        createLock.unlock();
       }
     } finally {
       rmLock.unlock();
@@ -167,23 +167,57 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   }
 
 
-  private void updateLastUsedTime(@NotNull final File dir) {
-    Lock rmLock = getRmLock(dir).readLock();
+  public void updateLastUsedTime(@NotNull final File dir) {
+    myMirrorManager.updateLastUsedTime(dir);
+    startLastUsedTimeSaver();
+  }
+
+
+  /**
+   * Last used times are updated in memory on every repository open, they are
+   * saved to disk periodically and on shutdown
+   */
+  private synchronized void startLastUsedTimeSaver() {
+    if (myLastUsedTimeSaver != null)
+      return;
+    myLastUsedTimeSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Git mirrors last used time saver");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    myLastUsedTimeSaver.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        saveLastUsedTimes();
+      }
+    }, myLastUsedTimeSaveInterval, myLastUsedTimeSaveInterval, TimeUnit.SECONDS);
+  }
+
+
+  public void addMissingLastUsedTimes() {
+    myMirrorManager.addMissingLastUsedTimes();
+    startLastUsedTimeSaver();
+  }
+
+
+  public void saveLastUsedTimes() {
     try {
-      rmLock.lock();
-      synchronized (getUpdateLastUsedTimeLock(dir)) {
-        File timestamp = new File(dir, "timestamp");
-        if (!dir.exists() && !dir.mkdirs())
-          throw new IOException("Cannot create directory " + dir.getAbsolutePath());
-        if (!timestamp.exists())
-          timestamp.createNewFile();
-        FileUtil.writeFileAndReportErrors(timestamp, String.valueOf(System.currentTimeMillis()));
+      myMirrorManager.saveLastUsedTimes();
+    } catch (Exception e) {
+      LOG.warn("Error while saving last used times of mirrors", e);
+    }
+  }
+
+
+  public void dispose() {
+    synchronized (this) {
+      if (myLastUsedTimeSaver != null) {
+        myLastUsedTimeSaver.shutdown();
+        myLastUsedTimeSaver = null;
       }
-    } catch (IOException e) {
-      LOG.error("Error while updating timestamp in " + dir.getAbsolutePath(), e);
-    } finally {
-      rmLock.unlock();
     }
+    saveLastUsedTimes();
   }
 
 
@@ -194,68 +228,123 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 
 
   @NotNull
-  private Object getUpdateLastUsedTimeLock(@NotNull File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myUpdateLastUsedTimeLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+  public Lock getWriteLock(@NotNull final File dir) {
+    return new MirrorLock(getLockKey(dir)) {
+      @NotNull
+      @Override
+      protected Lock getLock(@NotNull MirrorLocks locks) {
+        return locks.myWriteLock;
+      }
+    };
   }
 
 
   @NotNull
-  public Object getWriteLock(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myWriteLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  public ReadWriteLock getRmLock(@NotNull final File dir) {
+    final File key = getLockKey(dir);
+    return new ReadWriteLock() {
+      @NotNull
+      public Lock readLock() {
+        return new MirrorLock(key) {
+          @NotNull
+          @Override
+          protected Lock getLock(@NotNull MirrorLocks locks) {
+            return locks.myRmLock.readLock();
+          }
+        };
+      }
+
+      @NotNull
+      public Lock writeLock() {
+        return new MirrorLock(key) {
+          @NotNull
+          @Override
+          protected Lock getLock(@NotNull MirrorLocks locks) {
+            return locks.myRmLock.writeLock();
+          }
+        };
+      }
+    };
+  }
+
+
+  @NotNull
+  public Lock getCreateLock(@NotNull final File dir) {
+    return new MirrorLock(getLockKey(dir)) {
+      @NotNull
+      @Override
+      protected Lock getLock(@NotNull MirrorLocks locks) {
+        return locks.myCreateLock;
+      }
+    };
+  }
+
+
+  /**
+   * @return number of mirrors whose locks are held or awaited
+   */
+  public int getLockedMirrorsCount() {
+    synchronized (myLocks) {
+      return myLocks.size();
     }
   }
 
 
   @NotNull
-  public ReadWriteLock getRmLock(@NotNull final File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myRmLocks, canonical, new ReentrantReadWriteLock());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private MirrorLocks acquireLocks(@NotNull File key) {
+    synchronized (myLocks) {
+      MirrorLocks locks = myLocks.get(key);
+      if (locks == null) {
+        locks = new MirrorLocks();
+        myLocks.put(key, locks);
+      }
+      locks.myUsers++;
+      return locks;
     }
   }
 
 
   @NotNull
-  public Object getCreateLock(File dir) {
-    try {
-      File canonical = dir.getCanonicalFile();
-      return getOrCreate(myCreateLocks, canonical, new Object());
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private MirrorLocks getAcquiredLocks(@NotNull File key) {
+    synchronized (myLocks) {
+      MirrorLocks locks = myLocks.get(key);
+      if (locks == null)
+        throw new IllegalMonitorStateException("Locks of " + key.getAbsolutePath() + " are not held");
+      return locks;
     }
   }
 
 
-  public void cleanLocksFor(@NotNull final File dir) {
+  private void releaseLocks(@NotNull File key) {
+    synchronized (myLocks) {
+      MirrorLocks locks = myLocks.get(key);
+      if (locks != null && --locks.myUsers == 0)
+        myLocks.remove(key);
+    }
+  }
+
+
+  /**
+   * Mirror dirs are canonicalized using the base mirrors dir canonicalized
+   * once, other dirs (e.g. temporary repositories) are canonicalized every time
+   */
+  @NotNull
+  private File getLockKey(@NotNull File dir) {
+    if (isDefaultMirrorDir(dir))
+      return new File(myCanonicalBaseMirrorsDir, dir.getName());
+    return getCanonicalFile(dir);
+  }
+
+
+  @NotNull
+  private static File getCanonicalFile(@NotNull File dir) {
     try {
-      File canonical = dir.getCanonicalFile();
-      myWriteLocks.remove(canonical);
-      myCreateLocks.remove(canonical);
-      myRmLocks.remove(canonical);
+      return dir.getCanonicalFile();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private <K, V> V getOrCreate(ConcurrentMap<K, V> map, K key, V value) {
-    V existing = map.putIfAbsent(key, value);
-    if (existing != null)
-      return existing;
-    else
-      return value;
-  }
-
 
   @NotNull
   private URIish getCanonicalURI(@NotNull final URIish uri) {
@@ -266,4 +355,108 @@ public final class RepositoryManagerImpl implements RepositoryManager {
 //      .setPort(uri.getPort())
 //      .setPath(uri.getPath());
   }
+
+
+  /**
+   * Lock of a mirror returned to callers. It doesn't hold the mirror locks itself, they are
+   * looked up in the registry on every lock/unlock, so the lock can be unlocked via another
+   * instance obtained for the same dir.
+   */
+  private abstract class MirrorLock implements Lock {
+    private final File myKey;
+
+    private MirrorLock(@NotNull File key) {
+      myKey = key;
+    }
+
+    @NotNull
+    protected abstract Lock getLock(@NotNull MirrorLocks locks);
+
+    public void lock() {
+      Lock lock = getLock(acquireLocks(myKey));
+      boolean locked = false;
+      try {
+        lock.lock();
+        locked = true;
+      } finally {
+        if (!locked)
+          releaseLocks(myKey);
+      }
+    }
+
+    public void lockInterruptibly() throws InterruptedException {
+      Lock lock = getLock(acquireLocks(myKey));
+      boolean locked = false;
+      try {
+        lock.lockInterruptibly();
+        locked = true;
+      } finally {
+        if (!locked)
+          releaseLocks(myKey);
+      }
+    }
+
+    public boolean tryLock() {
+      Lock lock = getLock(acquireLocks(myKey));
+      boolean locked = false;
+      try {
+        locked = lock.tryLock();
+        return locked;
+      } finally {
+        if (!locked)
+          releaseLocks(myKey);
+      }
+    }
+
+    public boolean tryLock(long time, @NotNull TimeUnit unit) throws InterruptedException {
+      Lock lock = getLock(acquireLocks(myKey));
+      boolean locked = false;
+      try {
+        locked = lock.tryLock(time, unit);
+        return locked;
+      } finally {
+        if (!locked)
+          releaseLocks(myKey);
+      }
+    }
+
+    public void unlock() {
+      getLock(getAcquiredLocks(myKey)).unlock();
+      releaseLocks(myKey);
+    }
+
+    @NotNull
+    public Condition newCondition() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+
+  /**
+   * Locks of a single mirror
+   */
+  private static final class MirrorLocks {
+    /**
+     * During repository creation jgit checks existence of some files and directories. When several threads
+     * try to create repository concurrently some of them could see it in inconsistent state. This lock is used
+     * for repository creation, so only one thread at a time will create repository at give dir.
+     */
+    private final Lock myCreateLock = new ReentrantLock();
+    /**
+     * In the past jgit has some concurrency problems, in order to fix them we do only one fetch at a time.
+     * Also several concurrent fetches in single repository does not make sense since only one of them succeed.
+     * This lock is used for fetch and push operations.
+     */
+    private final Lock myWriteLock = new ReentrantLock();
+    /**
+     * During cleanup unused bare repositories are removed. This rw lock is used for repository removal.
+     * Fetch/push/create operations should be done with read lock hold, remove operation is done with write lock hold.
+     * @see Cleanup
+     */
+    private final ReentrantReadWriteLock myRmLock = new ReentrantReadWriteLock();
+    /**
+     * Number of threads holding or waiting for the locks
+     */
+    private int myUsers;//guarded by myLocks
+  }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.util.filters.Filter;
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.GitUtils.isTag;
+
+/**
+ * Remembers refs advertised for a root during the previous state computation.
+ * If advertised refs didn't move, the previous {@link RepositoryStateData}
+ * instance is returned as is; otherwise a new state is built reusing revisions
+ * of unchanged refs. States are shared by roots with equal keys, delta between
+ * the two latest states reported to a root is available via {@link #getLastDelta(long)}.
+ * Both states and deltas are kept for at most {@link #MAX_ENTRIES} recently used
+ * keys and roots.
+ */
+public class RepositoryStateCache {
+
+  private static final int MAX_ENTRIES = 1000;
+
+  private final Map<String, CachedState> myStates = Collections.synchronizedMap(new LinkedHashMap<String, CachedState>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedState> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  });
+  //root id -> last state reported to the root and delta with the state reported before it
+  private final Map<Long, RootState> myRootStates = Collections.synchronizedMap(new LinkedHashMap<Long, RootState>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, RootState> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  });
+
+  /**
+   * @param key key of the root state, roots with equal keys should report equal states
+   * @param rootId id of the root the state is computed for
+   * @param defaultBranch full name of the default branch
+   * @param advertisedRefs refs advertised by a remote repository
+   * @param filter filter for refs which should be included into the state
+   * @return state of the repository
+   */
+  @NotNull
+  public RepositoryStateData getState(@NotNull String key,
+                                      long rootId,
+                                      @NotNull String defaultBranch,
+                                      @NotNull Collection<Ref> advertisedRefs,
+                                      @NotNull Filter<Ref> filter) {
+    RepositoryStateData state = getState(key, defaultBranch, advertisedRefs, filter);
+    RootState previous = myRootStates.get(rootId);
+    RepositoryStateDelta delta = getDelta(previous != null ? previous.myState : null, state);
+    myRootStates.put(rootId, new RootState(state, delta));
+    return state;
+  }
+
+
+  @NotNull
+  private RepositoryStateData getState(@NotNull String key,
+                                       @NotNull String defaultBranch,
+                                       @NotNull Collection<Ref> advertisedRefs,
+                                       @NotNull Filter<Ref> filter) {
+    CachedState previous = myStates.get(key);
+    if (previous != null && previous.myDefaultBranch.equals(defaultBranch) && !isChanged(previous, advertisedRefs, filter))
+      return previous.myState;
+
+    Map<String, ObjectId> refs = new HashMap<String, ObjectId>(advertisedRefs.size());
+    Map<String, String> revisions = new HashMap<String, String>(advertisedRefs.size());
+    for (Ref ref : advertisedRefs) {
+      if (!filter.accept(ref))
+        continue;
+      String name = ref.getName();
+      ObjectId id = getRevisionId(ref);
+      refs.put(name, id);
+      ObjectId previousId = previous != null ? previous.myRefs.get(name) : null;
+      String previousRevision = previousId != null ? previous.myState.getBranchRevisions().get(name) : null;
+      if (previousId != null && previousRevision != null && previousId.equals(id)) {
+        revisions.put(name, previousRevision);
+      } else {
+        revisions.put(name, id.name());
+      }
+    }
+
+    RepositoryStateData state = RepositoryStateData.createVersionState(defaultBranch, revisions);
+    myStates.put(key, new CachedState(defaultBranch, refs, state));
+    return state;
+  }
+
+
+  @NotNull
+  private RepositoryStateDelta getDelta(@Nullable RepositoryStateData previous, @NotNull RepositoryStateData state) {
+    if (previous == state)
+      return RepositoryStateDelta.UNCHANGED;
+    Map<String, String> previousRevisions = previous != null ? previous.getBranchRevisions() : Collections.<String, String>emptyMap();
+    Map<String, String> revisions = state.getBranchRevisions();
+    Set<String> added = new HashSet<String>();
+    Set<String> updated = new HashSet<String>();
+    for (Map.Entry<String, String> e : revisions.entrySet()) {
+      String previousRevision = previousRevisions.get(e.getKey());
+      if (previousRevision == null) {
+        added.add(e.getKey());
+      } else if (!previousRevision.equals(e.getValue())) {
+        updated.add(e.getKey());
+      }
+    }
+    Set<String> removed = new HashSet<String>();
+    for (String name : previousRevisions.keySet()) {
+      if (!revisions.containsKey(name))
+        removed.add(name);
+    }
+    return new RepositoryStateDelta(added, updated, removed);
+  }
+
+
+  /**
+   * @param rootId id of the root
+   * @return delta between the two latest states computed for the root,
+   * or null if the state was never computed for it
+   */
+  @Nullable
+  public RepositoryStateDelta getLastDelta(long rootId) {
+    RootState state = myRootStates.get(rootId);
+    return state != null ? state.myDelta : null;
+  }
+
+
+  public void clear() {
+    myStates.clear();
+    myRootStates.clear();
+  }
+
+
+  private boolean isChanged(@NotNull CachedState previous, @NotNull Collection<Ref> advertisedRefs, @NotNull Filter<Ref> filter) {
+    int count = 0;
+    for (Ref ref : advertisedRefs) {
+      if (!filter.accept(ref))
+        continue;
+      ObjectId previousId = previous.myRefs.get(ref.getName());
+      if (previousId == null || !previousId.equals(getRevisionId(ref)))
+        return true;
+      count++;
+    }
+    return count != previous.myRefs.size();
+  }
+
+
+  @NotNull
+  private static ObjectId getRevisionId(@NotNull Ref ref) {
+    if (isTag(ref) && ref.getPeeledObjectId() != null)
+      return ref.getPeeledObjectId();
+    return ref.getObjectId();
+  }
+
+
+  private static final class CachedState {
+    private final String myDefaultBranch;
+    private final Map<String, ObjectId> myRefs;
+    private final RepositoryStateData myState;
+
+    private CachedState(@NotNull String defaultBranch,
+                        @NotNull Map<String, ObjectId> refs,
+                        @NotNull RepositoryStateData state) {
+      myDefaultBranch = defaultBranch;
+      myRefs = refs;
+      myState = state;
+    }
+  }
+
+
+  private static final class RootState {
+    private final RepositoryStateData myState;
+    private final RepositoryStateDelta myDelta;
+
+    private RootState(@NotNull RepositoryStateData state, @NotNull RepositoryStateDelta delta) {
+      myState = state;
+      myDelta = delta;
+    }
+  }
+}
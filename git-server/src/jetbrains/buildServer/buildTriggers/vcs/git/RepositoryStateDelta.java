@@ -0,0 +1,66 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Refs added, updated and removed between two consecutive states of a repository
+ */
+public final class RepositoryStateDelta {
+
+  public static final RepositoryStateDelta UNCHANGED = new RepositoryStateDelta(Collections.<String>emptySet(),
+                                                                                Collections.<String>emptySet(),
+                                                                                Collections.<String>emptySet());
+
+  private final Set<String> myAddedRefs;
+  private final Set<String> myUpdatedRefs;
+  private final Set<String> myRemovedRefs;
+
+  public RepositoryStateDelta(@NotNull Set<String> addedRefs, @NotNull Set<String> updatedRefs, @NotNull Set<String> removedRefs) {
+    myAddedRefs = Collections.unmodifiableSet(addedRefs);
+    myUpdatedRefs = Collections.unmodifiableSet(updatedRefs);
+    myRemovedRefs = Collections.unmodifiableSet(removedRefs);
+  }
+
+  public boolean isChanged() {
+    return !myAddedRefs.isEmpty() || !myUpdatedRefs.isEmpty() || !myRemovedRefs.isEmpty();
+  }
+
+  @NotNull
+  public Set<String> getAddedRefs() {
+    return myAddedRefs;
+  }
+
+  @NotNull
+  public Set<String> getUpdatedRefs() {
+    return myUpdatedRefs;
+  }
+
+  @NotNull
+  public Set<String> getRemovedRefs() {
+    return myRemovedRefs;
+  }
+
+  @Override
+  public String toString() {
+    return "added: " + myAddedRefs.size() + ", updated: " + myUpdatedRefs.size() + ", removed: " + myRemovedRefs.size();
+  }
+}
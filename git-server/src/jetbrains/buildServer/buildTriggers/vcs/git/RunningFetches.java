@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes progress of running fetches reported by fetch processes as a JMX bean,
+ * so a slow fetch can be inspected while it is running (e.g. with jconsole)
+ */
+public class RunningFetches implements RunningFetchesMBean {
+
+  private static Logger LOG = Logger.getInstance(RunningFetches.class.getName());
+  private static final String OBJECT_NAME = "jetbrains.buildServer.git:type=RunningFetches";
+
+  private final FetchCommandImpl myFetchCommand;
+
+  public RunningFetches(@NotNull FetchCommandImpl fetchCommand) {
+    myFetchCommand = fetchCommand;
+  }
+
+
+  public int getRunningFetchCount() {
+    return myFetchCommand.getRunningFetches().size();
+  }
+
+
+  public String[] getRunningFetches() {
+    long now = System.currentTimeMillis();
+    List<String> result = new ArrayList<String>();
+    for (Map.Entry<File, FetchMetrics> entry : myFetchCommand.getRunningFetches().entrySet()) {
+      FetchMetrics metrics = entry.getValue();
+      result.add(entry.getKey().getAbsolutePath() + ": running for " + (now - metrics.getStartTime()) + "ms, " +
+                 "no progress for " + (now - metrics.getLastAdvanceTime()) + "ms, " + metrics);
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      //bean from the previous plugin instance
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+      server.registerMBean(this, name);
+    } catch (Exception e) {
+      LOG.warn("Cannot register JMX bean " + OBJECT_NAME, e);
+    }
+  }
+
+
+  public void unregister() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+    } catch (Exception e) {
+      LOG.warn("Cannot unregister JMX bean " + OBJECT_NAME, e);
+    }
+  }
+}
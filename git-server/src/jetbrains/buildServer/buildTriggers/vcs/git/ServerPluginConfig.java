@@ -31,6 +31,22 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getStreamFileThreshold();
 
+  /**
+   * @return number of threads loading blobs for all patches built by the server,
+   * values less than 2 mean blobs are loaded by the patch building thread
+   */
+  int getPatchContentLoaderThreads();
+
+  /**
+   * @return max total size of file content cached for the content provider, 0 disables the cache
+   */
+  long getFileContentCacheSizeBytes();
+
+  /**
+   * @return max total weight of tree listings cached for the files browser, 0 disables the cache
+   */
+  long getTreeListingCacheSizeBytes();
+
 
   int getFetchTimeout();
 
@@ -43,6 +59,16 @@ public interface ServerPluginConfig extends PluginConfig {
 
   String getFetchProcessMaxMemory();
 
+  /**
+   * @return max -Xmx in megabytes the fetch process can get after retries on OutOfMemoryError
+   */
+  int getFetchProcessMaxMemoryLimitMb();
+
+  /**
+   * @return total -Xmx in megabytes of concurrently running fetch processes, 0 means unlimited
+   */
+  int getFetchProcessMemoryBudgetMb();
+
 
   boolean isSeparateProcessForFetch();
 
@@ -59,11 +85,42 @@ public interface ServerPluginConfig extends PluginConfig {
   String getFetcherClassName();
 
 
+  String getFetchWorkerClassName();
+
+  /**
+   * @return max number of idle fetch worker processes, 0 means a new process is started for every fetch
+   */
+  int getFetchWorkersMaxIdle();
+
+
+  int getFetchWorkerIdleTimeoutSeconds();
+
+  /**
+   * @return number of fetches after which worker process is restarted
+   */
+  int getFetchWorkerMaxFetches();
+
+  /**
+   * @return max number of concurrent fetches, 0 means unlimited
+   */
+  int getFetchConcurrencyLimit();
+
+  /**
+   * @return max number of concurrent fetches from the same host, 0 means unlimited
+   */
+  int getFetchConcurrencyLimitPerHost();
+
+
   int getFixedSubmoduleCommitSearchDepth();
 
 
   long getMirrorExpirationTimeoutMillis();
 
+  /**
+   * @return interval between saves of mirrors last used times to disk
+   */
+  int getMirrorLastUsedTimeSaveIntervalSeconds();
+
   @NotNull
   List<String> getProxySettingsForSeparateProcess();
 
@@ -73,6 +130,18 @@ public interface ServerPluginConfig extends PluginConfig {
   @Nullable
   Proxy getJschProxy();
 
+  /**
+   * @return max number of idle ssh sessions kept for reuse per host, 0 turns pooling off.
+   * It is an idle-only cap: the number of active connections to a host is not limited.
+   */
+  int getSshSessionPoolSizePerHost();
+
+  /**
+   * @return time after which an idle pooled ssh session is disconnected, the pool
+   * checks it on every take/release and periodically while it has idle sessions
+   */
+  int getSshSessionIdleTimeoutSeconds();
+
   int getNumberOfCommitsWhenFromVersionNotFound();
 
   @NotNull
@@ -88,6 +157,24 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getMapFullPathRevisionCacheSize();
 
+  /**
+   * @return max number of commits with cached changes per repository, 0 turns the cache off
+   */
+  int getCommitChangesCacheSize();
+
+  /**
+   * @return number of threads computing commit diffs during collecting changes,
+   * diffs are computed in the calling thread if value is less than 2
+   */
+  int getCollectChangesThreadCount();
+
+  /**
+   * @return period in milliseconds during which refs advertised by a remote
+   * repository are shared between roots with the same fetch url and
+   * authentication settings, 0 means only concurrent requests are shared
+   */
+  long getRemoteRefsSharingWindowMillis();
+
   long getConnectionRetryIntervalMillis();
 
   int getConnectionRetryAttempts();
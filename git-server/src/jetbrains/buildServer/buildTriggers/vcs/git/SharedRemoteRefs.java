@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares refs advertised by a remote repository between roots with the same
+ * fetch url and authentication settings. Concurrent requests wait for the
+ * single running request, successful results are also reused during
+ * {@link ServerPluginConfig#getRemoteRefsSharingWindowMillis()}.
+ */
+public class SharedRemoteRefs {
+
+  private final ServerPluginConfig myConfig;
+  private final Map<String, Request> myRequests = new HashMap<String, Request>();
+
+  public SharedRemoteRefs(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  @NotNull
+  public Map<String, Ref> getRefs(@NotNull GitVcsRoot root, @NotNull Callable<Map<String, Ref>> listRefs) throws Exception {
+    String key = getKey(root);
+    Request request;
+    boolean owner = false;
+    synchronized (myRequests) {
+      removeExpiredRequests();
+      request = myRequests.get(key);
+      if (request == null) {
+        request = new Request(listRefs);
+        myRequests.put(key, request);
+        owner = true;
+      }
+    }
+    if (owner) {
+      request.run();
+      synchronized (myRequests) {
+        request.myFinishTime = System.currentTimeMillis();
+        if (!request.isSuccessful() || myConfig.getRemoteRefsSharingWindowMillis() <= 0)
+          myRequests.remove(key);
+      }
+    }
+    try {
+      return request.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
+
+  private void removeExpiredRequests() {
+    long now = System.currentTimeMillis();
+    long window = myConfig.getRemoteRefsSharingWindowMillis();
+    Iterator<Request> iter = myRequests.values().iterator();
+    while (iter.hasNext()) {
+      Request request = iter.next();
+      if (request.myFinishTime > 0 && now - request.myFinishTime > window)
+        iter.remove();
+    }
+  }
+
+
+  @NotNull
+  private String getKey(@NotNull GitVcsRoot root) {
+    return root.getRepositoryFetchURL().toString() + "\n" + new TreeMap<String, String>(root.getAuthSettings().toMap());
+  }
+
+
+  private static final class Request extends FutureTask<Map<String, Ref>> {
+    //guarded by myRequests, 0 while request is running
+    private long myFinishTime;
+
+    private Request(@NotNull Callable<Map<String, Ref>> listRefs) {
+      super(listRefs);
+    }
+
+    private boolean isSuccessful() {
+      try {
+        get();
+        return true;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+  }
+}
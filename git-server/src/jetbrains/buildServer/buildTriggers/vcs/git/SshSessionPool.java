@@ -0,0 +1,292 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.jcraft.jsch.Session;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps authenticated ssh sessions released by transports, so subsequent
+ * operations with the same host, user and authentication settings don't
+ * pay for key exchange and authentication again.
+ *
+ * Number of idle sessions per host is limited by
+ * {@link ServerPluginConfig#getSshSessionPoolSizePerHost()}, sessions idle for
+ * longer than {@link ServerPluginConfig#getSshSessionIdleTimeoutSeconds()}
+ * are disconnected on take/release and by a periodic sweep which runs while
+ * the pool has idle sessions. Session taken from the pool is checked by
+ * sending a keep-alive message.
+ */
+public class SshSessionPool {
+
+  private static final Logger LOG = Logger.getInstance(SshSessionPool.class.getName());
+
+  private final ServerPluginConfig myConfig;
+  private final Map<String, LinkedList<PooledSession>> myIdleSessions = new HashMap<String, LinkedList<PooledSession>>();
+  private final Map<String, Integer> myIdleSessionsPerHost = new HashMap<String, Integer>();
+  private ScheduledExecutorService mySweeper;//guarded by this
+
+  public SshSessionPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  public boolean isEnabled() {
+    return myConfig.getSshSessionPoolSizePerHost() > 0;
+  }
+
+
+  /**
+   * @param key session key
+   * @return healthy idle session with the specified key or null if there is no such session
+   */
+  @Nullable
+  public PooledSession take(@NotNull String key) {
+    while (true) {
+      PooledSession session;
+      List<PooledSession> expired;
+      synchronized (this) {
+        expired = removeExpired();
+        LinkedList<PooledSession> sessions = myIdleSessions.get(key);
+        if (sessions != null) {
+          session = sessions.removeLast();
+          if (sessions.isEmpty())
+            myIdleSessions.remove(key);
+          decIdleCount(session.getHost());
+        } else {
+          session = null;
+        }
+      }
+      disconnect(expired);
+      if (session == null)
+        return null;
+      if (session.isHealthy()) {
+        LOG.debug("Reuse ssh session to " + session.getHost());
+        return session;
+      }
+      LOG.debug("Ssh session to " + session.getHost() + " is broken, disconnect it");
+      session.disconnectSession();
+    }
+  }
+
+
+  public void release(@NotNull PooledSession session) {
+    List<PooledSession> expired;
+    synchronized (this) {
+      expired = removeExpired();
+      if (isEnabled() && session.isConnected() && getIdleCount(session.getHost()) < myConfig.getSshSessionPoolSizePerHost()) {
+        session.markIdle();
+        LinkedList<PooledSession> sessions = myIdleSessions.get(session.getKey());
+        if (sessions == null) {
+          sessions = new LinkedList<PooledSession>();
+          myIdleSessions.put(session.getKey(), sessions);
+        }
+        sessions.add(session);
+        incIdleCount(session.getHost());
+        session = null;
+        startSweeper();
+      }
+    }
+    disconnect(expired);
+    if (session != null)
+      session.disconnectSession();
+  }
+
+
+  /**
+   * Disconnects sessions idle for longer than the idle timeout
+   */
+  public void disconnectExpired() {
+    List<PooledSession> expired;
+    synchronized (this) {
+      expired = removeExpired();
+      if (myIdleSessions.isEmpty())
+        stopSweeper();
+    }
+    disconnect(expired);
+  }
+
+
+  /**
+   * Disconnects all idle sessions
+   */
+  public void clear() {
+    List<PooledSession> sessions = new ArrayList<PooledSession>();
+    synchronized (this) {
+      for (LinkedList<PooledSession> keySessions : myIdleSessions.values()) {
+        sessions.addAll(keySessions);
+      }
+      myIdleSessions.clear();
+      myIdleSessionsPerHost.clear();
+      stopSweeper();
+    }
+    disconnect(sessions);
+  }
+
+
+  //should be called under lock
+  private void startSweeper() {
+    if (mySweeper != null)
+      return;
+    mySweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Git ssh session pool sweeper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    long interval = Math.max(1, myConfig.getSshSessionIdleTimeoutSeconds() / 2);
+    mySweeper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        disconnectExpired();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+
+  //should be called under lock
+  private void stopSweeper() {
+    if (mySweeper != null) {
+      mySweeper.shutdown();
+      mySweeper = null;
+    }
+  }
+
+
+  private void disconnect(@NotNull List<PooledSession> sessions) {
+    for (PooledSession session : sessions) {
+      session.disconnectSession();
+    }
+  }
+
+
+  //should be called under lock, returned sessions should be disconnected by the caller
+  @NotNull
+  private List<PooledSession> removeExpired() {
+    List<PooledSession> result = new ArrayList<PooledSession>();
+    long expireTime = System.currentTimeMillis() - myConfig.getSshSessionIdleTimeoutSeconds() * 1000L;
+    Iterator<LinkedList<PooledSession>> iter = myIdleSessions.values().iterator();
+    while (iter.hasNext()) {
+      LinkedList<PooledSession> sessions = iter.next();
+      //sessions are added to the tail, so the oldest ones are at the head
+      while (!sessions.isEmpty() && sessions.getFirst().getIdleSince() < expireTime) {
+        PooledSession expired = sessions.removeFirst();
+        decIdleCount(expired.getHost());
+        result.add(expired);
+      }
+      if (sessions.isEmpty())
+        iter.remove();
+    }
+    return result;
+  }
+
+
+  private int getIdleCount(@NotNull String host) {
+    Integer count = myIdleSessionsPerHost.get(host);
+    return count != null ? count : 0;
+  }
+
+
+  private void incIdleCount(@NotNull String host) {
+    myIdleSessionsPerHost.put(host, getIdleCount(host) + 1);
+  }
+
+
+  private void decIdleCount(@NotNull String host) {
+    int count = getIdleCount(host) - 1;
+    if (count > 0) {
+      myIdleSessionsPerHost.put(host, count);
+    } else {
+      myIdleSessionsPerHost.remove(host);
+    }
+  }
+
+
+  public static final class PooledSession implements RemoteSession {
+    private final String myKey;
+    private final String myHost;
+    private final RemoteSession myDelegate;
+    private final Session mySession;
+    private volatile long myIdleSince;
+
+    public PooledSession(@NotNull String key, @NotNull String host, @NotNull RemoteSession delegate, @NotNull Session session) {
+      myKey = key;
+      myHost = host;
+      myDelegate = delegate;
+      mySession = session;
+    }
+
+    public Process exec(String commandName, int timeout) throws IOException {
+      return myDelegate.exec(commandName, timeout);
+    }
+
+    public void disconnect() {
+      disconnectSession();
+    }
+
+    @NotNull
+    String getKey() {
+      return myKey;
+    }
+
+    @NotNull
+    String getHost() {
+      return myHost;
+    }
+
+    long getIdleSince() {
+      return myIdleSince;
+    }
+
+    void markIdle() {
+      myIdleSince = System.currentTimeMillis();
+    }
+
+    boolean isConnected() {
+      return mySession.isConnected();
+    }
+
+    boolean isHealthy() {
+      if (!mySession.isConnected())
+        return false;
+      try {
+        mySession.sendKeepAliveMsg();
+        return true;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+
+    void disconnectSession() {
+      try {
+        myDelegate.disconnect();
+      } catch (Exception e) {
+        LOG.debug("Error while disconnecting ssh session to " + myHost, e);
+      }
+    }
+  }
+}
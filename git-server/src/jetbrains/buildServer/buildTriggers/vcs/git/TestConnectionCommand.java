@@ -75,7 +75,6 @@ public class TestConnectionCommand {
       }
     } finally {
       if (repositoryTempDir != null) {
-        myRepositoryManager.cleanLocksFor(repositoryTempDir);
         FileUtil.delete(repositoryTempDir);
       }
     }
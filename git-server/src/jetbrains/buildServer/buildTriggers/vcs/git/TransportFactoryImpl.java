@@ -29,6 +29,7 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.*;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.*;
@@ -45,10 +46,12 @@ public class TransportFactoryImpl implements TransportFactory {
 
   private final ServerPluginConfig myConfig;
   private final Map<String,String> myJSchOptions;
+  private final SshSessionPool mySessionPool;
 
   public TransportFactoryImpl(@NotNull ServerPluginConfig config) {
     myConfig = config;
     myJSchOptions = getJSchCipherOptions();
+    mySessionPool = new SshSessionPool(config);
   }
 
 
@@ -108,16 +111,78 @@ public class TransportFactoryImpl implements TransportFactory {
    * @throws VcsException in case of problems with creating object
    */
   private SshSessionFactory getSshSessionFactory(AuthSettings authSettings, URIish url) throws VcsException {
+    DefaultJschConfigSessionFactory factory;
     switch (authSettings.getAuthMethod()) {
       case PRIVATE_KEY_DEFAULT:
-        return new DefaultJschConfigSessionFactory(myConfig, authSettings, myJSchOptions);
+        factory = new DefaultJschConfigSessionFactory(myConfig, authSettings, myJSchOptions);
+        break;
       case PRIVATE_KEY_FILE:
-        return new CustomPrivateKeySessionFactory(myConfig, authSettings, myJSchOptions);
+        factory = new CustomPrivateKeySessionFactory(myConfig, authSettings, myJSchOptions);
+        break;
       case PASSWORD:
-        return new PasswordJschConfigSessionFactory(myConfig, authSettings, myJSchOptions);
+        factory = new PasswordJschConfigSessionFactory(myConfig, authSettings, myJSchOptions);
+        break;
       default:
         throw new VcsAuthenticationException(url.toString(), "The authentication method " + authSettings.getAuthMethod() + " is not supported for SSH");
     }
+    if (!mySessionPool.isEnabled())
+      return factory;
+    return new PooledSessionFactory(mySessionPool, factory, authSettings);
+  }
+
+
+  /**
+   * Disconnects idle ssh sessions kept for reuse
+   */
+  public void disconnectIdleSessions() {
+    mySessionPool.clear();
+  }
+
+
+  /**
+   * Takes sessions from the pool and returns released sessions back to it
+   */
+  private static class PooledSessionFactory extends SshSessionFactory {
+    private final SshSessionPool myPool;
+    private final DefaultJschConfigSessionFactory myDelegate;
+    private final AuthSettings myAuthSettings;
+
+    private PooledSessionFactory(@NotNull SshSessionPool pool,
+                                 @NotNull DefaultJschConfigSessionFactory delegate,
+                                 @NotNull AuthSettings authSettings) {
+      myPool = pool;
+      myDelegate = delegate;
+      myAuthSettings = authSettings;
+    }
+
+    @Override
+    public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException {
+      String key = getKey(uri);
+      SshSessionPool.PooledSession pooled = myPool.take(key);
+      if (pooled != null)
+        return pooled;
+      synchronized (myDelegate) {
+        RemoteSession session = myDelegate.getSession(uri, credentialsProvider, fs, tms);
+        Session jschSession = myDelegate.getLastSession();
+        if (jschSession == null || uri.getHost() == null)
+          return session;
+        return new SshSessionPool.PooledSession(key, uri.getHost(), session, jschSession);
+      }
+    }
+
+    @Override
+    public void releaseSession(RemoteSession session) {
+      if (session instanceof SshSessionPool.PooledSession) {
+        myPool.release((SshSessionPool.PooledSession) session);
+      } else {
+        super.releaseSession(session);
+      }
+    }
+
+    @NotNull
+    private String getKey(@NotNull URIish uri) {
+      return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort() + "\n" + new TreeMap<String, String>(myAuthSettings.toMap());
+    }
   }
 
 
@@ -125,6 +190,7 @@ public class TransportFactoryImpl implements TransportFactory {
     protected final ServerPluginConfig myConfig;
     protected final AuthSettings myAuthSettings;
     private final Map<String,String> myJschOptions;
+    private Session myLastSession;
 
     private DefaultJschConfigSessionFactory(@NotNull ServerPluginConfig config,
                                             @NotNull AuthSettings authSettings,
@@ -134,9 +200,26 @@ public class TransportFactoryImpl implements TransportFactory {
       myJschOptions = jschOptions;
     }
 
+    @Override
+    protected Session createSession(OpenSshConfig.Host hc, String user, String host, int port, FS fs) throws JSchException {
+      Session session = super.createSession(hc, user, host, port, fs);
+      myLastSession = session;
+      return session;
+    }
+
+    /**
+     * @return the last session created by this factory
+     */
+    @Nullable
+    Session getLastSession() {
+      return myLastSession;
+    }
+
     @Override
     protected void configure(OpenSshConfig.Host hc, Session session) {
       session.setProxy(myConfig.getJschProxy());//null proxy is allowed
+      if (myConfig.getSshSessionPoolSizePerHost() > 0)
+        session.setDaemonThread(true);//idle pooled sessions shouldn't prevent fetch process from exit
       if (myAuthSettings.isIgnoreKnownHosts())
         session.setConfig("StrictHostKeyChecking", "no");
       if (!myConfig.alwaysCheckCiphers()) {
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsFileData;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Caches data used by {@link GitListFilesSupport}: listings of trees and ids
+ * of trees at paths in commits. Trees are immutable, so listings are keyed by
+ * tree id only and are shared between all roots and mirrors. Listings are
+ * evicted in LRU order when their total weight exceeds
+ * {@link ServerPluginConfig#getTreeListingCacheSizeBytes()}.
+ * ThreadSafe.
+ */
+public final class TreeListingCache {
+
+  private static final int MAX_PATHS = 10000;
+
+  private final ServerPluginConfig myConfig;
+  private final LinkedHashMap<ObjectId, Listing> myListings = new LinkedHashMap<ObjectId, Listing>(16, 0.75f, true);//guarded by myListings
+  private long myListingsWeight;//guarded by myListings
+  //commit id, path -> tree id
+  private final Map<String, ObjectId> myTreeIds = new LinkedHashMap<String, ObjectId>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ObjectId> eldest) {
+      return size() > MAX_PATHS;
+    }
+  };//guarded by myTreeIds
+
+  public TreeListingCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  @Nullable
+  public Listing getListing(@NotNull AnyObjectId treeId) {
+    synchronized (myListings) {
+      return myListings.get(treeId);
+    }
+  }
+
+
+  public void putListing(@NotNull AnyObjectId treeId, @NotNull Listing listing) {
+    long maxWeight = myConfig.getTreeListingCacheSizeBytes();
+    //don't let a single huge tree evict most of the cache
+    if (listing.getWeight() > maxWeight / 8)
+      return;
+    synchronized (myListings) {
+      Listing old = myListings.put(treeId.copy(), listing);
+      if (old != null)
+        myListingsWeight -= old.getWeight();
+      myListingsWeight += listing.getWeight();
+      Iterator<Listing> iter = myListings.values().iterator();
+      while (myListingsWeight > maxWeight && iter.hasNext()) {
+        myListingsWeight -= iter.next().getWeight();
+        iter.remove();
+      }
+    }
+  }
+
+
+  /**
+   * @return id of the tree at the specified path in the commit or null if it is not cached
+   */
+  @Nullable
+  public ObjectId getTreeId(@NotNull AnyObjectId commitId, @NotNull String path) {
+    synchronized (myTreeIds) {
+      return myTreeIds.get(getTreeIdKey(commitId, path));
+    }
+  }
+
+
+  public void putTreeId(@NotNull AnyObjectId commitId, @NotNull String path, @NotNull AnyObjectId treeId) {
+    if (myConfig.getTreeListingCacheSizeBytes() <= 0)
+      return;
+    synchronized (myTreeIds) {
+      myTreeIds.put(getTreeIdKey(commitId, path), treeId.copy());
+    }
+  }
+
+
+  @NotNull
+  private String getTreeIdKey(@NotNull AnyObjectId commitId, @NotNull String path) {
+    return commitId.name() + "\n" + path;
+  }
+
+
+  /**
+   * Direct children of a tree. Names are kept in the tree order, ids are
+   * kept only for subtrees, so nested paths can be resolved without walking
+   * from the root tree.
+   */
+  public static final class Listing {
+    private static final byte FILE = 0;
+    private static final byte DIR = 1;
+    private static final byte SUBMODULE = 2;
+
+    private final String[] myNames;
+    private final byte[] myTypes;
+    private final ObjectId[] myTreeIds;
+    private final int myWeight;
+
+    private Listing(@NotNull String[] names, @NotNull byte[] types, @NotNull ObjectId[] treeIds) {
+      myNames = names;
+      myTypes = types;
+      myTreeIds = treeIds;
+      int weight = 64;
+      for (int i = 0; i < names.length; i++) {
+        weight += 48 + 2 * names[i].length() + (treeIds[i] != null ? 56 : 0);
+      }
+      myWeight = weight;
+    }
+
+    public int getWeight() {
+      return myWeight;
+    }
+
+    /**
+     * @return index of the child with the specified name or -1 if there is no such child
+     */
+    public int indexOf(@NotNull String name) {
+      for (int i = 0; i < myNames.length; i++) {
+        if (myNames[i].equals(name))
+          return i;
+      }
+      return -1;
+    }
+
+    public boolean isSubmodule(int index) {
+      return myTypes[index] == SUBMODULE;
+    }
+
+    /**
+     * @return id of the child tree or null if the child is not a tree
+     */
+    @Nullable
+    public ObjectId getTreeId(int index) {
+      return myTreeIds[index];
+    }
+
+    /**
+     * @return children of the tree, submodules are reported as directories
+     */
+    @NotNull
+    public List<VcsFileData> getFiles() {
+      List<VcsFileData> files = new ArrayList<VcsFileData>(myNames.length);
+      for (int i = 0; i < myNames.length; i++) {
+        files.add(new VcsFileData(myNames[i], myTypes[i] != FILE));
+      }
+      return files;
+    }
+  }
+
+
+  public static final class ListingBuilder {
+    private final List<String> myNames = new ArrayList<String>();
+    private final List<Byte> myTypes = new ArrayList<Byte>();
+    private final List<ObjectId> myTreeIds = new ArrayList<ObjectId>();
+
+    public void addFile(@NotNull String name) {
+      add(name, Listing.FILE, null);
+    }
+
+    public void addDir(@NotNull String name, @NotNull AnyObjectId treeId) {
+      add(name, Listing.DIR, treeId.copy());
+    }
+
+    public void addSubmodule(@NotNull String name) {
+      add(name, Listing.SUBMODULE, null);
+    }
+
+    @NotNull
+    public Listing build() {
+      byte[] types = new byte[myTypes.size()];
+      for (int i = 0; i < types.length; i++) {
+        types[i] = myTypes.get(i);
+      }
+      return new Listing(myNames.toArray(new String[myNames.size()]), types, myTreeIds.toArray(new ObjectId[myTreeIds.size()]));
+    }
+
+    private void add(@NotNull String name, byte type, @Nullable ObjectId treeId) {
+      myNames.add(name);
+      myTypes.add(type);
+      myTreeIds.add(treeId);
+    }
+  }
+}
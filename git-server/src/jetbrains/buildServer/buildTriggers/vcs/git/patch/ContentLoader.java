@@ -0,0 +1,167 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.patch;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsRoot;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads and inflates blobs for the patch in the executor shared by all
+ * patch builds while the patch building thread writes previously loaded files.
+ *
+ * Every executor thread gets its own ObjectReader per repository, so loads
+ * don't share inflaters and delta base caches. Blobs larger than
+ * {@link #MAX_CONTENT_SIZE} are not loaded, they are streamed by the patch
+ * building thread, so memory used by loaded content is bounded.
+ */
+final class ContentLoader {
+
+  private static final int MAX_CONTENT_SIZE = 4 * 1024 * 1024;
+
+  private final GitVcsRoot myRoot;
+  private final Executor myExecutor;
+  private final List<Load> myLoads = new ArrayList<Load>();//accessed by the patch building thread only
+  //executor thread -> its readers, released when loader is stopped
+  private final Map<Thread, Map<Repository, ObjectReader>> myReaders = new HashMap<Thread, Map<Repository, ObjectReader>>();//guarded by myReaders
+  private int myRunningLoads;//guarded by myReaders
+
+  ContentLoader(@NotNull GitVcsRoot root, @NotNull Executor executor) {
+    myRoot = root;
+    myExecutor = executor;
+  }
+
+
+  /**
+   * @return future with content of the blob converted according to the root
+   * autocrlf setting, content is null if blob is too large and should be streamed
+   */
+  @NotNull
+  Future<byte[]> load(@NotNull Repository repository, @NotNull ObjectId blobId) {
+    Load load = new Load(repository, blobId);
+    removeCompletedLoads();
+    myLoads.add(load);
+    myExecutor.execute(load);
+    return load;
+  }
+
+
+  /**
+   * Cancels not started loads, waits for running loads to finish and
+   * releases readers, so repositories can be closed after that
+   */
+  void stop() {
+    for (Load load : myLoads) {
+      load.cancel(false);
+    }
+    myLoads.clear();
+    boolean interrupted = false;
+    synchronized (myReaders) {
+      while (myRunningLoads > 0) {
+        try {
+          myReaders.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      for (Map<Repository, ObjectReader> readers : myReaders.values()) {
+        for (ObjectReader reader : readers.values()) {
+          reader.release();
+        }
+      }
+      myReaders.clear();
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+
+  private void removeCompletedLoads() {
+    Iterator<Load> iter = myLoads.iterator();
+    while (iter.hasNext()) {
+      if (iter.next().isDone())
+        iter.remove();
+    }
+  }
+
+
+  @NotNull
+  private ObjectReader getReader(@NotNull Repository repository) {
+    synchronized (myReaders) {
+      Thread thread = Thread.currentThread();
+      Map<Repository, ObjectReader> readers = myReaders.get(thread);
+      if (readers == null) {
+        readers = new HashMap<Repository, ObjectReader>();
+        myReaders.put(thread, readers);
+      }
+      ObjectReader reader = readers.get(repository);
+      if (reader == null) {
+        reader = repository.newObjectReader();
+        readers.put(repository, reader);
+      }
+      return reader;
+    }
+  }
+
+
+  @Nullable
+  private byte[] doLoad(@NotNull Repository repository, @NotNull ObjectId blobId) throws IOException {
+    ObjectLoader loader = getReader(repository).open(blobId);
+    if (loader.isLarge() || loader.getSize() > MAX_CONTENT_SIZE)
+      return null;
+    byte[] content = loader.getCachedBytes();
+    return myRoot.isAutoCrlf() ? LoadContentAction.toCrlf(content) : content;
+  }
+
+
+  private final class Load extends FutureTask<byte[]> {
+    private Load(@NotNull final Repository repository, @NotNull final ObjectId blobId) {
+      super(new Callable<byte[]>() {
+        public byte[] call() throws Exception {
+          return doLoad(repository, blobId);
+        }
+      });
+    }
+
+    @Override
+    public void run() {
+      //cancelled loads don't start, so stop() only waits for loads counted here
+      synchronized (myReaders) {
+        if (isCancelled())
+          return;
+        myRunningLoads++;
+      }
+      try {
+        super.run();
+      } finally {
+        synchronized (myReaders) {
+          myRunningLoads--;
+          myReaders.notifyAll();
+        }
+      }
+    }
+  }
+}
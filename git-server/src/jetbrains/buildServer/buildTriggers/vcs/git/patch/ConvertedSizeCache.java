@@ -0,0 +1,84 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.patch;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers sizes of large blobs after the autocrlf conversion, so that the
+ * patch builder doesn't have to inflate such blobs twice (once to compute
+ * the size and once to write the content) when it sees them again.
+ * ThreadSafe.
+ */
+public final class ConvertedSizeCache {
+
+  private static final int MAX_ENTRIES = 10000;
+
+  private final Map<Key, Long> mySizes = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  /**
+   * @param blobId id of the blob
+   * @param mode conversion mode
+   * @return size of the converted blob or null if it is unknown
+   */
+  @Nullable
+  public synchronized Long getSize(@NotNull AnyObjectId blobId, @NotNull String mode) {
+    return mySizes.get(new Key(blobId.copy(), mode));
+  }
+
+  public synchronized void putSize(@NotNull AnyObjectId blobId, @NotNull String mode, long size) {
+    mySizes.put(new Key(blobId.copy(), mode), size);
+  }
+
+
+  private static final class Key {
+    private final ObjectId myBlobId;
+    private final String myMode;
+
+    private Key(@NotNull ObjectId blobId, @NotNull String mode) {
+      myBlobId = blobId;
+      myMode = mode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return myBlobId.equals(other.myBlobId) && myMode.equals(other.myMode);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myBlobId.hashCode() + myMode.hashCode();
+    }
+  }
+}
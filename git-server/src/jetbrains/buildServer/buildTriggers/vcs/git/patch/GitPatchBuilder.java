@@ -34,9 +34,9 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -50,7 +50,7 @@ public final class GitPatchBuilder {
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final PatchBuilder myBuilder;
-  private final List<Callable<Void>> myActions = new ArrayList<Callable<Void>>();
+  private final ConvertedSizeCache mySizeCache;
   private final String myFromRevision;
   private final String myToRevision;
   private final CheckoutRules myRules;
@@ -58,13 +58,19 @@ public final class GitPatchBuilder {
   private BuildPatchLogger myLogger;
   private Repository myRepository;
   private VcsChangeTreeWalk myTreeWalk;
+  private final Executor myContentLoaderExecutor;
+  private ContentLoader myContentLoader;
+  private final Deque<LoadContentAction> myPendingActions = new ArrayDeque<LoadContentAction>();
+  private int myMaxPendingActions;
 
   public GitPatchBuilder(@NotNull ServerPluginConfig config,
                          @NotNull OperationContext context,
                          @NotNull PatchBuilder builder,
                          @Nullable String fromRevision,
                          @NotNull String toRevision,
-                         @NotNull CheckoutRules rules) throws VcsException {
+                         @NotNull CheckoutRules rules,
+                         @NotNull ConvertedSizeCache sizeCache,
+                         @Nullable Executor contentLoaderExecutor) throws VcsException {
     myConfig = config;
     myContext = context;
     myGitRoot = context.getGitRoot();
@@ -72,52 +78,112 @@ public final class GitPatchBuilder {
     myFromRevision = fromRevision;
     myToRevision = toRevision;
     myRules = rules;
+    mySizeCache = sizeCache;
+    myContentLoaderExecutor = contentLoaderExecutor;
     myCleanCheckout = fromRevision == null;
-    myTreeWalk = null;
   }
 
+  /**
+   * Builds the patch in a streaming fashion: incremental patch walks the diff
+   * twice, the first walk writes deletes, the second one writes changed files
+   * as they are found. Deletes go first so they don't remove files created by
+   * the patch (e.g. when only the case of the file name changes).
+   */
   public void buildPatch() throws Exception {
     myLogger = new BuildPatchLogger(LOG, myGitRoot.debugInfo(), myConfig);
     myRepository = myContext.getRepository();
+    RevCommit toCommit = myContext.findCommit(myRepository, myToRevision);
+    RevCommit fromCommit = findFromCommit();
+    if (!myCleanCheckout)
+      walkTree(toCommit, fromCommit, true);
+    walkTree(toCommit, fromCommit, false);
+  }
+
+  @Nullable
+  private RevCommit findFromCommit() throws IOException, VcsException {
+    if (myCleanCheckout) {
+      myLogger.logBuildCleanPatch(myToRevision);
+      return null;
+    }
+    assert myFromRevision != null;
+    myLogger.logBuildIncrementalPatch(myFromRevision, myToRevision);
+    RevCommit fromCommit = myContext.findCommit(myRepository, myFromRevision);
+    if (fromCommit == null) {
+      myLogger.logFromRevisionNotFound(myFromRevision);
+      cleanCheckoutDir();
+      myCleanCheckout = true;
+    }
+    return fromCommit;
+  }
+
+  private void walkTree(@NotNull RevCommit toCommit, @Nullable RevCommit fromCommit, boolean deletes) throws Exception {
+    myTreeWalk = new VcsChangeTreeWalk(myConfig, myRepository, myGitRoot.debugInfo());
     try {
-      myTreeWalk = new VcsChangeTreeWalk(myConfig, myRepository, myGitRoot.debugInfo());
       myTreeWalk.setFilter(TreeFilter.ANY_DIFF);
       myTreeWalk.setRecursive(true);
-      addToCommitTree();
-      addFromCommitTree();
-      walkTree();
-      finish();
+      //submodule errors are logged only once, during the last walk
+      boolean logSubmoduleErrors = !deletes;
+      myContext.addTree(myGitRoot, myTreeWalk, myRepository, toCommit, false, logSubmoduleErrors);
+      if (fromCommit == null) {
+        myTreeWalk.addTree(new EmptyTreeIterator());
+      } else {
+        myContext.addTree(myGitRoot, myTreeWalk, myRepository, fromCommit, true, logSubmoduleErrors);
+      }
+      if (deletes) {
+        writeDeletes();
+      } else {
+        startContentLoader();
+        writeChanges();
+        writePendingActions(0);
+      }
     } finally {
-      if (myTreeWalk != null)
-        myTreeWalk.release();
+      stopContentLoader();
+      myTreeWalk.release();
+      myTreeWalk = null;
     }
   }
 
-  private void addToCommitTree() throws IOException, VcsException {
-    RevCommit toCommit = myContext.findCommit(myRepository, myToRevision);
-    myContext.addTree(myGitRoot, myTreeWalk, myRepository, toCommit, false);
+  /**
+   * Blobs are loaded by the content loader in parallel with the tree walk,
+   * they are written to the patch in the tree walk order
+   */
+  private void startContentLoader() {
+    if (myContentLoaderExecutor == null)
+      return;
+    myContentLoader = new ContentLoader(myGitRoot, myContentLoaderExecutor);
+    myMaxPendingActions = 2 * Math.max(myConfig.getPatchContentLoaderThreads(), 1);
   }
 
-  private void addFromCommitTree() throws IOException, VcsException {
-    if (myCleanCheckout) {
-      myLogger.logBuildCleanPatch(myToRevision);
-      myTreeWalk.addTree(new EmptyTreeIterator());
-    } else {
-      assert myFromRevision != null;
-      myLogger.logBuildIncrementalPatch(myFromRevision, myToRevision);
-      RevCommit fromCommit = myContext.findCommit(myRepository, myFromRevision);
-      if (fromCommit == null) {
-        myLogger.logFromRevisionNotFound(myFromRevision);
-        myTreeWalk.addTree(new EmptyTreeIterator());
-        cleanCheckoutDir();
-        myCleanCheckout = true;
-      } else {
-        myContext.addTree(myGitRoot, myTreeWalk, myRepository, fromCommit, true);
+  private void stopContentLoader() {
+    if (myContentLoader != null) {
+      myContentLoader.stop();
+      myContentLoader = null;
+    }
+    myPendingActions.clear();
+  }
+
+  private void writePendingActions(int maxPendingActions) throws Exception {
+    while (myPendingActions.size() > maxPendingActions) {
+      myPendingActions.poll().call();
+    }
+  }
+
+  private void writeDeletes() throws Exception {
+    while (myTreeWalk.next()) {
+      String path = myTreeWalk.getPathString();
+      String mappedPath = myRules.map(path);
+      if (mappedPath == null)
+        continue;
+      ChangeType changeType = myTreeWalk.classifyChange();
+      if (changeType == ChangeType.DELETED && !FileMode.GITLINK.equals(myTreeWalk.getFileMode(0))) {
+        myLogger.logVisitFile(myTreeWalk.treeWalkInfo(path));
+        myLogger.logChangeType(path, changeType);
+        deleteFile(mappedPath);
       }
     }
   }
 
-  private void walkTree() throws Exception {
+  private void writeChanges() throws Exception {
     while (myTreeWalk.next()) {
       String path = myTreeWalk.getPathString();
       String mappedPath = myRules.map(path);
@@ -125,8 +191,10 @@ public final class GitPatchBuilder {
         myLogger.logFileExcludedByCheckoutRules(path, myRules);
         continue;
       }
-      myLogger.logVisitFile(myTreeWalk.treeWalkInfo(path));
       ChangeType changeType = myTreeWalk.classifyChange();
+      if (changeType == ChangeType.DELETED)
+        continue;//written by the first walk
+      myLogger.logVisitFile(myTreeWalk.treeWalkInfo(path));
       myLogger.logChangeType(path, changeType);
       switch (changeType) {
         case UNCHANGED:
@@ -137,10 +205,6 @@ public final class GitPatchBuilder {
           if (!FileMode.GITLINK.equals(myTreeWalk.getFileMode(0)))
             changeOrCreateFile(path, mappedPath);
           break;
-        case DELETED:
-          if (!FileMode.GITLINK.equals(myTreeWalk.getFileMode(0)))
-            deleteFile(mappedPath);
-          break;
         default:
           throw new IllegalStateException("Unknown change type");
       }
@@ -162,10 +226,11 @@ public final class GitPatchBuilder {
       .withMode(mode)
       .withPath(path)
       .withMappedPath(mappedPath);
-    if (myCleanCheckout) {
-      loadContent.call();// clean patch, we aren't going to see any deletes
+    if (myContentLoader == null) {
+      loadContent.call();
     } else {
-      myActions.add(loadContent);
+      myPendingActions.add(loadContent.withContent(myContentLoader.load(r, id)));
+      writePendingActions(myMaxPendingActions);
     }
   }
 
@@ -173,11 +238,6 @@ public final class GitPatchBuilder {
     myBuilder.deleteFile(GitUtils.toFile(mappedFile), true);
   }
 
-  private void finish() throws Exception {
-    for (Callable<Void> action : myActions)
-      action.call();
-  }
-
   private Repository getRepositoryOfTree() {
     Repository result;
     AbstractTreeIterator ti = myTreeWalk.getTree(0, AbstractTreeIterator.class);
@@ -190,6 +250,6 @@ public final class GitPatchBuilder {
   }
 
   private LoadContentAction loadContent() {
-    return new LoadContentAction(myGitRoot, myBuilder, myLogger);
+    return new LoadContentAction(myGitRoot, myBuilder, myLogger, mySizeCache);
   }
 }
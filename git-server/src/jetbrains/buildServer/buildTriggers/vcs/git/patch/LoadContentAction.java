@@ -23,32 +23,39 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.util.io.AutoCRLFInputStream;
-import org.eclipse.jgit.util.io.AutoCRLFOutputStream;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
 * @author dmitry.neverov
 */
 class LoadContentAction implements Callable<Void> {
+  private static final String AUTO_CRLF_MODE = "autocrlf";
+
   private final GitVcsRoot myRoot;
   private final PatchBuilder myBuilder;
   private final BuildPatchLogger myLogger;
+  private final ConvertedSizeCache mySizeCache;
   private Repository myRepository;
   private ObjectId myObjectId;
   private String myPath;
   private String myMappedPath;
   private String myMode;
+  private Future<byte[]> myContent;
 
   LoadContentAction(@NotNull GitVcsRoot root,
                     @NotNull PatchBuilder builder,
-                    @NotNull BuildPatchLogger logger) {
+                    @NotNull BuildPatchLogger logger,
+                    @NotNull ConvertedSizeCache sizeCache) {
     myRoot = root;
     myBuilder = builder;
     myLogger = logger;
+    mySizeCache = sizeCache;
   }
 
   LoadContentAction fromRepository(@NotNull Repository repository) {
@@ -76,12 +83,36 @@ class LoadContentAction implements Callable<Void> {
     return this;
   }
 
+  /**
+   * @param content content loaded by {@link ContentLoader}
+   */
+  LoadContentAction withContent(@NotNull Future<byte[]> content) {
+    myContent = content;
+    return this;
+  }
+
   public Void call() throws Exception {
     InputStream objectStream = null;
     try {
-      ObjectLoader loader = getObjectLoader();
-      long size = getStreamSize(myRoot, loader);
-      objectStream = getObjectStream(myRoot, loader);
+      byte[] content = getLoadedContent();
+      long size;
+      if (content != null) {
+        size = content.length;
+        objectStream = new ByteArrayInputStream(content);
+      } else {
+        ObjectLoader loader = getObjectLoader();
+        if (!myRoot.isAutoCrlf()) {
+          size = loader.getSize();
+          objectStream = loader.isLarge() ? loader.openStream() : new ByteArrayInputStream(loader.getCachedBytes());
+        } else if (!loader.isLarge()) {
+          content = toCrlf(loader.getCachedBytes());
+          size = content.length;
+          objectStream = new ByteArrayInputStream(content);
+        } else {
+          size = getConvertedSize(loader);
+          objectStream = new AutoCRLFInputStream(loader.openStream(), true);
+        }
+      }
       myBuilder.changeOrCreateBinaryFile(GitUtils.toFile(myMappedPath), myMode, objectStream, size);
       myLogger.logAddFile(myMappedPath, size);
     } catch (Error e) {
@@ -97,6 +128,22 @@ class LoadContentAction implements Callable<Void> {
     return null;
   }
 
+  @Nullable
+  private byte[] getLoadedContent() throws Exception {
+    if (myContent == null)
+      return null;
+    try {
+      return myContent.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
   private ObjectLoader getObjectLoader() throws IOException {
     ObjectLoader loader = myRepository.open(myObjectId);
     if (loader == null)
@@ -104,20 +151,25 @@ class LoadContentAction implements Callable<Void> {
     return loader;
   }
 
-  private long getStreamSize(@NotNull GitVcsRoot root, @NotNull ObjectLoader loader) throws IOException {
-    if (!root.isAutoCrlf())
-      return loader.getSize();
-
+  /**
+   * Content of large blobs is streamed. When conversion is required the
+   * converted size of such blobs is computed by an additional pass over the
+   * blob and cached. Other blobs are inflated and converted once in memory.
+   */
+  private long getConvertedSize(@NotNull ObjectLoader loader) throws IOException {
+    Long cachedSize = mySizeCache.getSize(myObjectId, AUTO_CRLF_MODE);
+    if (cachedSize != null)
+      return cachedSize;
     InputStream objectStream = null;
     try {
-      objectStream = loader.isLarge() ? loader.openStream() : new ByteArrayInputStream(loader.getCachedBytes());
-      objectStream = new AutoCRLFInputStream(objectStream, true);
+      objectStream = new AutoCRLFInputStream(loader.openStream(), true);
       int count;
-      int size = 0;
-      byte[] buf = new byte[8096];
+      long size = 0;
+      byte[] buf = new byte[8192];
       while ((count = objectStream.read(buf)) != -1) {
         size += count;
       }
+      mySizeCache.putSize(myObjectId, AUTO_CRLF_MODE, size);
       return size;
     } finally {
       if (objectStream != null)
@@ -125,10 +177,18 @@ class LoadContentAction implements Callable<Void> {
     }
   }
 
-  private InputStream getObjectStream(@NotNull GitVcsRoot root, @NotNull ObjectLoader loader) throws IOException {
-    InputStream stream = loader.isLarge() ? loader.openStream() : new ByteArrayInputStream(loader.getCachedBytes());
-    if (!root.isAutoCrlf())
-      return stream;
-    return new AutoCRLFInputStream(stream, true);
+  /**
+   * @return blob content with line endings converted to CRLF, binary content is not converted
+   */
+  @NotNull
+  static byte[] toCrlf(@NotNull byte[] content) throws IOException {
+    InputStream in = new AutoCRLFInputStream(new ByteArrayInputStream(content), true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + content.length / 16);
+    byte[] buf = new byte[8192];
+    int count;
+    while ((count = in.read(buf)) != -1) {
+      out.write(buf, 0, count);
+    }
+    return out.toByteArray();
   }
 }
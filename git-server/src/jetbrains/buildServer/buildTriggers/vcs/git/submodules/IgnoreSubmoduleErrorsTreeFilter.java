@@ -73,6 +73,13 @@ public class IgnoreSubmoduleErrorsTreeFilter extends TreeFilter {
     return myBrokenSubmodulePathsInRestTrees;
   }
 
+  /**
+   * @return true if broken submodule entries were met during the walk
+   */
+  public boolean hasBrokenSubmodules() {
+    return !myBrokenSubmodulePathsInFirstTree.isEmpty() || !myBrokenSubmodulePathsInRestTrees.isEmpty();
+  }
+
   public boolean isBrokenSubmoduleEntry(String path) {
     for (String brokenSubmodulePath : myBrokenSubmodulePathsInRestTrees) {
       if (path.equals(brokenSubmodulePath))
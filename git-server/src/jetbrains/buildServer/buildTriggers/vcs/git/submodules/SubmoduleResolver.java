@@ -25,7 +25,6 @@ import org.eclipse.jgit.lib.BlobBasedConfig;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevWalk;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -74,7 +73,7 @@ public abstract class SubmoduleResolver {
     Repository r = resolveRepository(path, submodule.getUrl());
     if (!isCommitExist(r, commit))
       fetch(r, path, submodule.getUrl());
-    final RevCommit c = myGitSupport.getCommit(r, commit);
+    final RevCommit c = parseCommit(r, commit);
     if (c == null) {
       String msg = "Repository '%1$s' has submodule in commit '%2$s' at path '%3$s', but tracked submodule commit '%4$s' is not found in repository '%5$s'. Forget to push it?";
       throw new CorruptObjectException(String.format(msg, mainRepositoryUrl, myCommit.getId().name(), path, commit.name(), submodule.getUrl()));
@@ -83,15 +82,26 @@ public abstract class SubmoduleResolver {
   }
 
   private boolean isCommitExist(final Repository r, final ObjectId commit) {
-    RevWalk walk = new RevWalk(r);
     try {
-      walk.parseCommit(commit);
+      parseCommit(r, commit);
       return true;
     } catch (IOException e) {
       return false;
     }
   }
 
+  /**
+   * Parse commit in the repository
+   *
+   * @param r the repository
+   * @param commit the commit id
+   * @return the parsed commit
+   * @throws IOException if commit is not found or cannot be parsed
+   */
+  protected RevCommit parseCommit(Repository r, ObjectId commit) throws IOException {
+    return myGitSupport.getCommit(r, commit);
+  }
+
   /**
    * Get repository by the URL. Note that the repository is retrieved but not cleaned up. This should be done by implementer of this component at later time.
    *
@@ -20,6 +20,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
 import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
 import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.transport.RefSpec;
@@ -79,6 +80,11 @@ public class TeamCitySubmoduleResolver extends SubmoduleResolver {
     myGitSupport.fetch(r, uri, Arrays.asList(new RefSpec("+refs/heads/*:refs/heads/*"), new RefSpec("+refs/tags/*:refs/tags/*")), myContext.getGitRoot().getAuthSettings());
   }
 
+  @Override
+  protected RevCommit parseCommit(Repository r, ObjectId commit) throws IOException {
+    return myContext.getCommit(r, commit);
+  }
+
   private boolean isRelative(String url) {
     return url.startsWith(".");
   }
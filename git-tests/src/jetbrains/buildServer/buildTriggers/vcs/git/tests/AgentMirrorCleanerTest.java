@@ -20,7 +20,11 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.DirectoryCleanersProviderContext;
 import jetbrains.buildServer.agent.DirectoryCleanersRegistry;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.HashCalculatorImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorConfig;
 import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManagerImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentMirrorCleaner;
 import jetbrains.buildServer.log.Log4jFactory;
 import jetbrains.buildServer.util.Dates;
@@ -29,6 +33,7 @@ import jetbrains.buildServer.vcs.VcsRootEntry;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -40,6 +45,7 @@ import java.util.List;
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
 import static jetbrains.buildServer.util.Util.map;
+import static org.testng.AssertJUnit.assertTrue;
 
 @Test
 public class AgentMirrorCleanerTest {
@@ -49,6 +55,7 @@ public class AgentMirrorCleanerTest {
   }
 
   private Mockery myContext = new Mockery();
+  private TempFiles myTempFiles = new TempFiles();
   private MirrorManager myMirrorManager;
   private AgentMirrorCleaner myAgentMirrorCleaner;
 
@@ -59,6 +66,12 @@ public class AgentMirrorCleanerTest {
   }
 
 
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
   public void should_register_mirrors_not_used_in_current_build() {
     final DirectoryCleanersRegistry registry = myContext.mock(DirectoryCleanersRegistry.class);
     final File r3mirror = new File("r3");
@@ -81,6 +94,38 @@ public class AgentMirrorCleanerTest {
   }
 
 
+  public void should_use_mirror_last_modified_time_across_restarts() throws Exception {
+    final File cachesDir = myTempFiles.createTempDir();
+    MirrorConfig config = new MirrorConfig() {
+      @NotNull
+      public File getCachesDir() {
+        return cachesDir;
+      }
+    };
+    MirrorManager mirrorManager = new MirrorManagerImpl(config, new HashCalculatorImpl());
+    final File r1mirror = mirrorManager.getMirrorDir("git://some.org/r1");
+    final File r2mirror = mirrorManager.getMirrorDir("git://some.org/r2");
+    assertTrue(r1mirror.mkdirs());
+    assertTrue(r2mirror.mkdirs());
+    assertTrue(r1mirror.setLastModified(Dates.makeDate(2012, 10, 29).getTime()));
+    assertTrue(r2mirror.setLastModified(Dates.makeDate(2012, 10, 27).getTime()));
+    final Date r1lastAccess = new Date(r1mirror.lastModified());
+    final Date r2lastAccess = new Date(r2mirror.lastModified());
+
+    DirectoryCleanersProviderContext context = createCleanerContext(new ArrayList<String>());
+    for (int i = 0; i < 2; i++) {
+      final DirectoryCleanersRegistry registry = myContext.mock(DirectoryCleanersRegistry.class, "registry" + i);
+      myContext.checking(new Expectations() {{
+        one(registry).addCleaner(r1mirror, r1lastAccess);
+        one(registry).addCleaner(r2mirror, r2lastAccess);
+      }});
+      new AgentMirrorCleaner(mirrorManager).registerDirectoryCleaners(context, registry);
+      mirrorManager = new MirrorManagerImpl(config, new HashCalculatorImpl()); //agent restart
+    }
+    myContext.assertIsSatisfied();
+  }
+
+
   private DirectoryCleanersProviderContext createCleanerContext(@NotNull final List<String> repositoriesInBuild) {
     final DirectoryCleanersProviderContext context = myContext.mock(DirectoryCleanersProviderContext.class);
     final AgentRunningBuild build = myContext.mock(AgentRunningBuild.class);
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.CommitChangesCache;
+import jetbrains.buildServer.buildTriggers.vcs.git.SubmodulesCheckoutPolicy;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class CommitChangesCacheTest {
+
+  private static final String COMMIT1 = "2c7e90053e0f7a5dd25ea2a16ef8909ba71826f6";
+  private static final String COMMIT2 = "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7";
+  private static final String COMMIT3 = "97442a720324a0bd092fb9235f72246dc8b345bc";
+  private TempFiles myTempFiles = new TempFiles();
+  private PluginConfigBuilder myConfigBuilder;
+  private File myRepositoryDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    ServerPaths paths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
+    myConfigBuilder = new PluginConfigBuilder(paths);
+    myRepositoryDir = myTempFiles.createTempDir();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_return_saved_changes() {
+    CommitChangesCache cache = new CommitChangesCache(myConfigBuilder.withCommitChangesCacheSize(10).build());
+    assertNull(cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE));
+
+    List<VcsChange> changes = Arrays.asList(
+      new VcsChange(VcsChange.Type.ADDED, null, "dir/a.txt", "dir/a.txt", COMMIT2, COMMIT1),
+      new VcsChange(VcsChange.Type.CHANGED, "File mode changed", "b.sh", "b.sh", COMMIT2, COMMIT1));
+    cache.putChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE, changes);
+
+    List<VcsChange> cached = cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE);
+    assertNotNull(cached);
+    assertEquals(2, cached.size());
+    assertEquals(VcsChange.Type.ADDED, cached.get(0).getType());
+    assertNull(cached.get(0).getChangeTypeName());
+    assertEquals("dir/a.txt", cached.get(0).getRelativeFileName());
+    assertEquals(COMMIT2, cached.get(0).getBeforeChangeRevisionNumber());
+    assertEquals(COMMIT1, cached.get(0).getAfterChangeRevisionNumber());
+    assertEquals("File mode changed", cached.get(1).getChangeTypeName());
+  }
+
+
+  public void changes_should_depend_on_submodules_policy() {
+    CommitChangesCache cache = new CommitChangesCache(myConfigBuilder.withCommitChangesCacheSize(10).build());
+    List<VcsChange> changes = Collections.singletonList(new VcsChange(VcsChange.Type.ADDED, null, "a.txt", "a.txt", COMMIT2, COMMIT1));
+    cache.putChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.CHECKOUT, changes);
+
+    assertNull(cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE));
+    assertNotNull(cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.CHECKOUT));
+    assertNotNull(cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.CHECKOUT_IGNORING_ERRORS));
+  }
+
+
+  public void should_not_cache_when_disabled() {
+    CommitChangesCache cache = new CommitChangesCache(myConfigBuilder.withCommitChangesCacheSize(0).build());
+    List<VcsChange> changes = Collections.singletonList(new VcsChange(VcsChange.Type.ADDED, null, "a.txt", "a.txt", COMMIT2, COMMIT1));
+    cache.putChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE, changes);
+    assertNull(cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE));
+  }
+
+
+  public void should_remove_least_recently_used_entries() throws Exception {
+    CommitChangesCache cache = new CommitChangesCache(myConfigBuilder.withCommitChangesCacheSize(2).build());
+    List<VcsChange> changes = Collections.singletonList(new VcsChange(VcsChange.Type.ADDED, null, "a.txt", "a.txt", COMMIT2, COMMIT1));
+    cache.putChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE, changes);
+    Thread.sleep(1100);
+    cache.putChanges(myRepositoryDir, COMMIT2, SubmodulesCheckoutPolicy.IGNORE, changes);
+    Thread.sleep(1100);
+    cache.putChanges(myRepositoryDir, COMMIT3, SubmodulesCheckoutPolicy.IGNORE, changes);
+    Thread.sleep(1100);
+    cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE);//make it recently used
+
+    cache.removeExcessEntries(myRepositoryDir);
+
+    assertNotNull(cache.getChanges(myRepositoryDir, COMMIT1, SubmodulesCheckoutPolicy.IGNORE));
+    assertNull(cache.getChanges(myRepositoryDir, COMMIT2, SubmodulesCheckoutPolicy.IGNORE));
+    assertNotNull(cache.getChanges(myRepositoryDir, COMMIT3, SubmodulesCheckoutPolicy.IGNORE));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.CommitIndex;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.annotations.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+@Test
+public class CommitIndexTest {
+
+  public void should_contain_added_ids() throws Exception {
+    List<ObjectId> ids = createIds(5000);
+    CommitIndex index = new CommitIndex();
+    index.addAll(ids.subList(0, 3000));
+    for (ObjectId id : ids.subList(2000, 5000)) {
+      index.add(id);
+    }
+    index.addAll(ids.subList(0, 100));//duplicates are ignored
+
+    assertEquals(5000, index.size());
+    for (ObjectId id : ids) {
+      assertTrue(index.contains(id));
+    }
+    for (ObjectId id : createIds(5000, 1000)) {
+      assertFalse(index.contains(id));
+    }
+    assertFalse(index.contains(ObjectId.zeroId()));
+  }
+
+
+  private List<ObjectId> createIds(int count) throws Exception {
+    return createIds(0, count);
+  }
+
+  private List<ObjectId> createIds(int from, int count) throws Exception {
+    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+    List<ObjectId> result = new ArrayList<ObjectId>();
+    for (int i = from; i < from + count; i++) {
+      result.add(ObjectId.fromRaw(sha1.digest(String.valueOf(i).getBytes("UTF-8"))));
+    }
+    return result;
+  }
+}
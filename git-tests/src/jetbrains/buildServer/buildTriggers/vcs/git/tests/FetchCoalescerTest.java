@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchCoalescer;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchScheduler;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.transport.RefSpec;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class FetchCoalescerTest {
+
+  private final File myRepositoryDir = new File("repo");
+
+
+  public void fetches_arrived_during_running_fetch_should_be_merged() throws Exception {
+    final FetchCoalescer coalescer = new FetchCoalescer();
+    final List<Set<RefSpec>> fetches = Collections.synchronizedList(new ArrayList<Set<RefSpec>>());
+    final CountDownLatch firstFetchStarted = new CountDownLatch(1);
+    final CountDownLatch finishFirstFetch = new CountDownLatch(1);
+    final FetchCoalescer.Fetch fetch = new FetchCoalescer.Fetch() {
+      public void fetch(@NotNull Collection<RefSpec> refspecs, @NotNull FetchScheduler.Priority priority) throws VcsException {
+        fetches.add(new HashSet<RefSpec>(refspecs));
+        firstFetchStarted.countDown();
+        try {
+          finishFirstFetch.await();
+        } catch (InterruptedException e) {
+          throw new VcsException(e);
+        }
+      }
+    };
+
+    Thread first = fetchInThread(coalescer, "refs/heads/master", fetch, null);
+    assertTrue(firstFetchStarted.await(5, TimeUnit.SECONDS));
+
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (String ref : Arrays.asList("refs/heads/master", "refs/heads/topic1", "refs/heads/topic2")) {
+      threads.add(fetchInThread(coalescer, ref, fetch, errors));
+    }
+    Thread.sleep(200);
+    finishFirstFetch.countDown();
+
+    first.join(5000);
+    for (Thread t : threads) {
+      t.join(5000);
+      assertFalse(t.isAlive());
+    }
+    assertTrue(errors.isEmpty());
+    assertEquals(2, fetches.size());
+    assertEquals(new HashSet<RefSpec>(Arrays.asList(spec("refs/heads/master"), spec("refs/heads/topic1"), spec("refs/heads/topic2"))),
+                 fetches.get(1));
+  }
+
+
+  public void fetches_with_overlapping_destinations_should_not_be_merged() throws Exception {
+    final FetchCoalescer coalescer = new FetchCoalescer();
+    final List<Set<RefSpec>> fetches = Collections.synchronizedList(new ArrayList<Set<RefSpec>>());
+    final CountDownLatch firstFetchStarted = new CountDownLatch(1);
+    final CountDownLatch finishFirstFetch = new CountDownLatch(1);
+    final FetchCoalescer.Fetch fetch = new FetchCoalescer.Fetch() {
+      public void fetch(@NotNull Collection<RefSpec> refspecs, @NotNull FetchScheduler.Priority priority) throws VcsException {
+        fetches.add(new HashSet<RefSpec>(refspecs));
+        firstFetchStarted.countDown();
+        try {
+          finishFirstFetch.await();
+        } catch (InterruptedException e) {
+          throw new VcsException(e);
+        }
+      }
+    };
+
+    Thread first = fetchInThread(coalescer, spec("refs/heads/topic1"), fetch, null);
+    assertTrue(firstFetchStarted.await(5, TimeUnit.SECONDS));
+
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(fetchInThread(coalescer, spec("refs/heads/master"), fetch, errors));
+    Thread.sleep(100);
+    threads.add(fetchInThread(coalescer, spec("refs/heads/*"), fetch, errors));
+    Thread.sleep(100);
+    threads.add(fetchInThread(coalescer, spec("refs/tags/v1"), fetch, errors));
+    Thread.sleep(100);
+    finishFirstFetch.countDown();
+
+    first.join(5000);
+    for (Thread t : threads) {
+      t.join(5000);
+      assertFalse(t.isAlive());
+    }
+    assertTrue(errors.isEmpty());
+    assertEquals(3, fetches.size());
+    assertTrue(fetches.contains(new HashSet<RefSpec>(Arrays.asList(spec("refs/heads/master"), spec("refs/tags/v1")))));
+    assertTrue(fetches.contains(new HashSet<RefSpec>(Arrays.asList(spec("refs/heads/*")))));
+  }
+
+
+  public void fetch_error_should_be_reported_to_all_merged_fetches() throws Exception {
+    FetchCoalescer coalescer = new FetchCoalescer();
+    try {
+      coalescer.fetch(myRepositoryDir, "key", Arrays.asList(spec("refs/heads/master")), FetchScheduler.Priority.BACKGROUND, new FetchCoalescer.Fetch() {
+        public void fetch(@NotNull Collection<RefSpec> refspecs, @NotNull FetchScheduler.Priority priority) throws VcsException {
+          throw new VcsException("fetch failed");
+        }
+      });
+      fail("Fetch error should be reported");
+    } catch (VcsException e) {
+      assertEquals("fetch failed", e.getMessage());
+    }
+  }
+
+
+  private Thread fetchInThread(final FetchCoalescer coalescer, final String ref, final FetchCoalescer.Fetch fetch, final List<Throwable> errors) {
+    return fetchInThread(coalescer, spec(ref), fetch, errors);
+  }
+
+
+  private Thread fetchInThread(final FetchCoalescer coalescer, final RefSpec spec, final FetchCoalescer.Fetch fetch, final List<Throwable> errors) {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          coalescer.fetch(myRepositoryDir, "key", Arrays.asList(spec), FetchScheduler.Priority.BACKGROUND, fetch);
+        } catch (Throwable e) {
+          if (errors != null)
+            errors.add(e);
+        }
+      }
+    });
+    t.start();
+    return t;
+  }
+
+
+  private RefSpec spec(String ref) {
+    return new RefSpec().setSourceDestination(ref, ref).setForceUpdate(true);
+  }
+}
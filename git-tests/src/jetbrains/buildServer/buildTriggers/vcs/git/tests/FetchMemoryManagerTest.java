@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchMemoryManager;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class FetchMemoryManagerTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+  private Repository myRepository;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfigBuilder = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+      .withFetchProcessMaxMemory("512M")
+      .withFetchProcessMaxMemoryLimitMb(1536);
+    myRepository = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    myRepository.create(true);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myRepository.close();
+    myTempFiles.cleanup();
+  }
+
+
+  public void memory_should_be_escalated_up_to_limit() {
+    FetchMemoryManager memoryManager = new FetchMemoryManager(myConfigBuilder.build());
+    assertEquals("512M", memoryManager.getMaxMemory(myRepository));
+    assertEquals("1024M", memoryManager.getEscalatedMemory("512M"));
+    assertEquals("1536M", memoryManager.getEscalatedMemory("1g"));
+    assertNull(memoryManager.getEscalatedMemory("1536M"));
+    assertNull(memoryManager.getEscalatedMemory("unknown"));
+  }
+
+
+  public void should_remember_memory_of_successful_retry() throws Exception {
+    FetchMemoryManager memoryManager = new FetchMemoryManager(myConfigBuilder.build());
+    memoryManager.fetchSucceeded(myRepository, "1024M", true, 0);
+    assertEquals("1024M", memoryManager.getMaxMemory(myRepository));
+
+    //learned memory is stored in the repository
+    Repository reopened = new RepositoryBuilder().setBare().setGitDir(myRepository.getDirectory()).build();
+    try {
+      assertEquals("1024M", new FetchMemoryManager(myConfigBuilder.build()).getMaxMemory(reopened));
+    } finally {
+      reopened.close();
+    }
+  }
+
+
+  public void should_learn_memory_from_live_heap() {
+    FetchMemoryManager memoryManager = new FetchMemoryManager(myConfigBuilder.build());
+    memoryManager.fetchSucceeded(myRepository, "512M", false, 100 * 1024 * 1024);
+    assertEquals("512M", memoryManager.getMaxMemory(myRepository));
+
+    memoryManager.fetchSucceeded(myRepository, "512M", false, 400 * 1024 * 1024);
+    assertEquals("800M", memoryManager.getMaxMemory(myRepository));
+
+    memoryManager.fetchSucceeded(myRepository, "800M", false, 1024 * 1024 * 1024);
+    assertEquals("1536M", memoryManager.getMaxMemory(myRepository));
+  }
+
+
+  public void fetch_should_wait_for_memory_budget() throws Exception {
+    final FetchMemoryManager memoryManager = new FetchMemoryManager(myConfigBuilder.withFetchProcessMemoryBudgetMb(1024).build());
+    memoryManager.acquire("512M");
+    memoryManager.acquire("512M");
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          memoryManager.acquire("512M");
+          acquired.countDown();
+        } catch (Exception e) {
+          //test will fail
+        }
+      }
+    });
+    t.start();
+    assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+    memoryManager.release("512M");
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+  }
+
+
+  public void fetch_bigger_than_budget_should_run_alone() throws Exception {
+    FetchMemoryManager memoryManager = new FetchMemoryManager(myConfigBuilder.withFetchProcessMemoryBudgetMb(256).build());
+    memoryManager.acquire("512M");
+    memoryManager.release("512M");
+    memoryManager.acquire("512M");
+  }
+}
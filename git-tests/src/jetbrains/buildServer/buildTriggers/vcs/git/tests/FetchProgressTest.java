@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchMetrics;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchProgress;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class FetchProgressTest {
+
+  public void formatted_progress_should_be_parsed() {
+    FetchProgress progress = new FetchProgress("Receiving objects", 10, 100, 2048, 1500, false, 64 * 1024 * 1024);
+    FetchProgress parsed = FetchProgress.parse(progress.format() + "\r");
+    assertNotNull(parsed);
+    assertEquals("Receiving objects", parsed.getPhase());
+    assertEquals(10, parsed.getCompleted());
+    assertEquals(100, parsed.getTotal());
+    assertEquals(2048, parsed.getBytes());
+    assertEquals(1500, parsed.getPhaseMillis());
+    assertFalse(parsed.isPhaseFinished());
+    assertEquals(64 * 1024 * 1024, parsed.getPeakHeap());
+    assertFalse(parsed.isAdvancedSince(progress));
+  }
+
+
+  public void should_ignore_other_output() {
+    assertNull(FetchProgress.parse("Receiving objects:  10% (10/100)"));
+    assertNull(FetchProgress.parse(""));
+  }
+
+
+  public void metrics_should_track_phases() {
+    FetchMetrics metrics = new FetchMetrics();
+    metrics.onProgress(new FetchProgress("Receiving objects", 50, 100, 1024, 500, false, 0));
+    assertEquals(50, metrics.getReceivedObjects());
+
+    metrics.onProgress(new FetchProgress("Receiving objects", 100, 100, 2048, 900, true, 0));
+    metrics.onProgress(new FetchProgress("Resolving deltas", 5, 10, 0, 100, false, 0));
+    assertEquals(100, metrics.getReceivedObjects());
+    assertEquals(2048, metrics.getBytes());
+    assertEquals("Resolving deltas", metrics.getLastProgress().getPhase());
+    assertTrue(metrics.toString().contains("Receiving objects: 900ms"));
+  }
+}
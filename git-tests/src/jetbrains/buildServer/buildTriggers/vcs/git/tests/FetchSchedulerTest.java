@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchScheduler;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class FetchSchedulerTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfigBuilder = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void busy_host_should_not_block_other_hosts() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfigBuilder.withFetchConcurrencyLimit(0).withFetchConcurrencyLimitPerHost(1).build());
+    FetchScheduler.Ticket ticket = scheduler.acquire("host1", FetchScheduler.Priority.BACKGROUND);
+
+    CountDownLatch sameHost = startFetch(scheduler, "host1", FetchScheduler.Priority.BACKGROUND, null);
+    CountDownLatch otherHost = startFetch(scheduler, "host2", FetchScheduler.Priority.BACKGROUND, null);
+    assertTrue(otherHost.await(5, TimeUnit.SECONDS));
+    assertFalse(sameHost.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, scheduler.getQueueSize());
+
+    scheduler.release(ticket);
+    assertTrue(sameHost.await(5, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.getQueueSize());
+  }
+
+
+  public void build_fetch_should_be_started_before_background_fetch() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfigBuilder.withFetchConcurrencyLimit(1).withFetchConcurrencyLimitPerHost(0).build());
+    FetchScheduler.Ticket ticket = scheduler.acquire("host1", FetchScheduler.Priority.BACKGROUND);
+
+    List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch background = startFetch(scheduler, "host1", FetchScheduler.Priority.BACKGROUND, started);
+    waitForQueueSize(scheduler, 1);
+    CountDownLatch build = startFetch(scheduler, "host2", FetchScheduler.Priority.BUILD, started);
+    waitForQueueSize(scheduler, 2);
+
+    scheduler.release(ticket);
+    assertTrue(build.await(5, TimeUnit.SECONDS));
+    assertTrue(background.await(5, TimeUnit.SECONDS));
+    assertEquals(asList("host2", "host1"), started);
+  }
+
+
+  private CountDownLatch startFetch(final FetchScheduler scheduler,
+                                    final String host,
+                                    final FetchScheduler.Priority priority,
+                                    final List<String> started) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          FetchScheduler.Ticket ticket = scheduler.acquire(host, priority);
+          if (started != null)
+            started.add(host);
+          latch.countDown();
+          if (started != null)
+            scheduler.release(ticket);
+        } catch (Exception e) {
+          //test will fail
+        }
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+    return latch;
+  }
+
+
+  private void waitForQueueSize(FetchScheduler scheduler, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (scheduler.getQueueSize() != size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(size, scheduler.getQueueSize());
+  }
+}
@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitResetCacheHandler;
 import jetbrains.buildServer.buildTriggers.vcs.git.RepositoryManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.RepositoryStateCache;
 import jetbrains.buildServer.util.cache.ResetCacheHandler;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -56,7 +57,7 @@ public class GitResetCacheHandlerTest {
     myTempFiles = new TempFiles();
     myCachesDir = myTempFiles.createTempDir();
     myRepositoryManager = myContext.mock(RepositoryManager.class);
-    myCacheHandler = new GitResetCacheHandler(myRepositoryManager);
+    myCacheHandler = new GitResetCacheHandler(myRepositoryManager, new RepositoryStateCache());
   }
 
   @AfterMethod
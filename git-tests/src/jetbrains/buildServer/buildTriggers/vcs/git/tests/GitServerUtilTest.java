@@ -20,13 +20,17 @@ import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil;
 import jetbrains.buildServer.util.FileUtil;
 import junit.framework.TestCase;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.transport.URIish;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
 
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+
 /**
  * @author dmitry.neverov
  */
@@ -48,4 +52,24 @@ public class GitServerUtilTest extends TestCase {
     db = GitServerUtil.getRepository(dir, new URIish("git://some.org/repository"));
   }
 
+
+  public void should_open_packs_created_by_another_process() throws Exception {
+    File dir = myTempFiles.createTempDir();
+    FileUtil.copyDir(dataFile("repo_for_fetch.1"), dir);
+    Repository db = new RepositoryBuilder().setBare().setGitDir(dir).build();
+    ObjectId newCommit = ObjectId.fromString("d47dda159b27b9a8c4cee4ce98e4435eb5b17168");
+    assertFalse(db.hasObject(newCommit));
+
+    //emulate fetch in another process which doesn't change timestamp of the pack dir
+    File packDir = new File(dir, "objects/pack");
+    long packDirTimestamp = packDir.lastModified();
+    for (File f : new File(dataFile("repo_for_fetch.2"), "objects/pack").listFiles()) {
+      FileUtil.copy(f, new File(packDir, f.getName()));
+    }
+    assertTrue(packDir.setLastModified(packDirTimestamp));
+
+    GitServerUtil.openNewPacks(db);
+    assertTrue(db.hasObject(newCommit));
+  }
+
 }
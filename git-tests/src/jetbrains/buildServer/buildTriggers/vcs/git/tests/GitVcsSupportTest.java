@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
+import com.intellij.openapi.util.Pair;
 import com.jcraft.jsch.JSchException;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.ExtensionHolder;
@@ -39,6 +40,7 @@ import org.apache.log4j.Level;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.LockFile;
@@ -55,6 +57,7 @@ import org.testng.annotations.Test;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
@@ -65,6 +68,7 @@ import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copy
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.getVcsRoot;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static jetbrains.buildServer.util.CollectionsUtil.setOf;
 import static jetbrains.buildServer.util.FileUtil.writeFile;
 import static jetbrains.buildServer.util.Util.map;
 
@@ -207,6 +211,58 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void commits_parsed_in_one_operation_should_be_shared() throws Exception {
+    GitVcsSupport support = getSupport();
+    VcsRoot root = getRoot("version-test");
+    support.getCurrentVersion(root);
+    support.getContentProvider().getContent("readme.txt", root, VERSION_TEST_HEAD);//fetch the commit
+    OperationContext context = support.createContext(root, "test");
+    try {
+      Repository r = context.getRepository();
+      RevCommit commit = context.getCommit(r, VERSION_TEST_HEAD);
+      assertSame(commit, context.getCommit(r, ObjectId.fromString(VERSION_TEST_HEAD)));
+      assertNull(context.findCommit(r, "1111111111111111111111111111111111111111"));
+    } finally {
+      context.close();
+    }
+  }
+
+
+  @Test
+  public void batch_content_should_be_the_same_as_single_file_content() throws Exception {
+    GitVcsSupport support = getSupport();
+    VcsRoot root = getRoot("patch-tests", true);
+    String version = support.getCurrentVersion(root);
+    GitVcsFileContentProvider contentProvider = (GitVcsFileContentProvider) support.getContentProvider();
+    List<Pair<String, String>> files = new ArrayList<Pair<String, String>>();
+    files.add(Pair.create("submodule.txt", version));
+    files.add(Pair.create("dir1/subdir/file2.txt", version));
+    files.add(Pair.create("submodule/file.txt", version));
+    files.add(Pair.create("dir1/subdir/file2.txt", "d1a88fd33c516c1b607db75eb62244b2ea495c42"));
+    final Map<String, byte[]> content = new HashMap<String, byte[]>();
+    contentProvider.getContent(root, files, new GitVcsFileContentProvider.ContentConsumer() {
+      public void consume(@NotNull String filePath, @NotNull String version, @NotNull byte[] data) {
+        content.put(filePath + "@" + version, data);
+      }
+    });
+    assertEquals(content.size(), files.size());
+    for (Pair<String, String> file : files) {
+      assertEquals(content.get(file.first + "@" + file.second), contentProvider.getContent(file.first, root, file.second));
+    }
+
+    try {
+      contentProvider.getContent(root, Collections.singletonList(Pair.create("non-existing file.txt", version)), new GitVcsFileContentProvider.ContentConsumer() {
+        public void consume(@NotNull String filePath, @NotNull String version, @NotNull byte[] data) {
+        }
+      });
+      fail("The file must not be loaded");
+    } catch (VcsFileNotFoundException e) {
+      //expected
+    }
+  }
+
+
   @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
   public void testCollectBuildChanges(boolean fetchInSeparateProcess) throws Exception {
     myConfigBuilder.setSeparateProcessForFetch(fetchInSeparateProcess);
@@ -647,6 +703,26 @@ public class GitVcsSupportTest extends PatchTestCase {
     assertEquals(changes.size(), 3);
   }
 
+  @Test
+  public void parallel_collect_changes_should_keep_order_of_commits() throws Exception {
+    VcsRoot root = getRoot("master");
+    List<ModificationData> expected = getSupport().collectChanges(root, CUD1_VERSION, MERGE_VERSION, CheckoutRules.DEFAULT);
+    myConfigBuilder.withCollectChangesThreadCount(4);
+    List<ModificationData> actual = getSupport().collectChanges(root, CUD1_VERSION, MERGE_VERSION, CheckoutRules.DEFAULT);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      ModificationData e = expected.get(i);
+      ModificationData a = actual.get(i);
+      assertEquals(e.getVersion(), a.getVersion());
+      assertEquals(e.getParentRevisions(), a.getParentRevisions());
+      assertEquals(e.getChanges().size(), a.getChanges().size());
+      for (int j = 0; j < e.getChanges().size(); j++) {
+        assertEquals(e.getChanges().get(j).getFileName(), a.getChanges().get(j).getFileName());
+        assertEquals(e.getChanges().get(j).getType(), a.getChanges().get(j).getType());
+      }
+    }
+  }
+
   @Test
   @TestFor(issues = "TW-30485")
   public void collect_changes_between_states_should_understand_revisions_with_timestamps() throws Exception {
@@ -710,6 +786,21 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void cached_content_should_respect_autocrlf() throws Exception {
+    GitVcsSupport support = getSupport();
+    VcsRoot root = vcsRoot().withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
+    VcsRoot crlfRoot = vcsRoot().withAutoCrlf(true).withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
+    String version = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+    for (int i = 0; i < 2; i++) {
+      assertEquals(new String(support.getContentProvider().getContent("readme.txt", root, version)),
+                   "Test repository for teamcity.change 1\nadd feature\n");
+      assertEquals(new String(support.getContentProvider().getContent("readme.txt", crlfRoot, version)),
+                   "Test repository for teamcity.change 1\r\nadd feature\r\n");
+    }
+  }
+
+
   @Test
   public void default_autocrlf_should_not_be_included_in_checkout_properties() throws VcsException {
     VcsRoot root = vcsRoot().withAutoCrlf(false).withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
@@ -777,6 +868,27 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void patch_should_not_depend_on_number_of_content_loader_threads() throws Exception {
+    VcsRoot root = getRoot("patch-tests", true);
+    byte[] serialPatch = buildPatch(root, null, SUBMODULE_ADDED_VERSION, 1);
+    byte[] parallelPatch = buildPatch(root, null, SUBMODULE_ADDED_VERSION, 8);
+    assertTrue(Arrays.equals(serialPatch, parallelPatch));
+    serialPatch = buildPatch(root, BEFORE_SUBMODULE_ADDED_VERSION, SUBMODULE_ADDED_VERSION, 1);
+    parallelPatch = buildPatch(root, BEFORE_SUBMODULE_ADDED_VERSION, SUBMODULE_ADDED_VERSION, 8);
+    assertTrue(Arrays.equals(serialPatch, parallelPatch));
+  }
+
+  private byte[] buildPatch(@NotNull VcsRoot root, @Nullable String fromVersion, @NotNull String toVersion, int contentLoaderThreads) throws Exception {
+    myConfigBuilder.withPatchContentLoaderThreads(contentLoaderThreads);
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final PatchBuilderImpl builder = new PatchBuilderImpl(output);
+    getSupport().buildPatch(root, fromVersion, toVersion, builder, CheckoutRules.DEFAULT);
+    builder.close();
+    return output.toByteArray();
+  }
+
+
   @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
   public void testLabels(boolean fetchInSeparateProcess) throws IOException, VcsException, URISyntaxException {
     myConfigBuilder.setSeparateProcessForFetch(fetchInSeparateProcess);
@@ -1221,6 +1333,61 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void missing_commit_should_be_fetched_only_from_refs_which_can_contain_it() throws Exception {
+    File remoteRepositoryDir = new File(myTmpDir, "repo_for_fetch");
+    copyRepository(dataFile("repo_for_fetch.2.personal"), remoteRepositoryDir);
+    //branch pointing to the commit which is already in the mirror, no need to fetch it
+    File otherBranch = new File(remoteRepositoryDir, "refs" + File.separator + "heads" + File.separator + "other");
+    otherBranch.getParentFile().mkdirs();
+    writeFile(otherBranch, "add81050184d3c818560bdd8839f50024c188586\n");
+    String mirrorPath = "targeted_fetch_mirror";
+    VcsRoot root = vcsRoot().withId(1)
+      .withFetchUrl(GitUtils.toURL(remoteRepositoryDir))
+      .withBranch("master")
+      .withRepositoryPathOnServer(mirrorPath)
+      .build();
+    GitVcsSupport git = getSupport();
+
+    git.buildPatch(root, null, "add81050184d3c818560bdd8839f50024c188586", new PatchBuilderImpl(new ByteArrayOutputStream()), CheckoutRules.DEFAULT);
+    //commit from the personal branch
+    git.buildPatch(root, null, "d47dda159b27b9a8c4cee4ce98e4435eb5b17168", new PatchBuilderImpl(new ByteArrayOutputStream()), CheckoutRules.DEFAULT);
+
+    Repository mirror = new RepositoryBuilder().setBare().setGitDir(new File(myServerPaths.getCachesDir(), "git" + File.separator + mirrorPath)).build();
+    try {
+      assertNotNull(mirror.getRef("refs/heads/personal"));
+      assertNull(mirror.getRef("refs/heads/other"));
+    } finally {
+      mirror.close();
+    }
+  }
+
+
+  @Test
+  public void fetch_in_worker_process() throws Exception {
+    myConfigBuilder.setSeparateProcessForFetch(true).withFetchWorkersMaxIdle(1);
+    File remoteRepositoryDir = new File(myTmpDir, "repo_for_fetch");
+    copyRepository(dataFile("repo_for_fetch.1"), remoteRepositoryDir);
+    VcsRootImpl root = getRoot("master", false, remoteRepositoryDir);
+    GitVcsSupport git = getSupport();
+
+    RepositoryStateData state1 = git.getCurrentState(root);
+
+    copyRepository(dataFile("repo_for_fetch.2"), remoteRepositoryDir);
+    RepositoryStateData state2 = git.getCurrentState(root);
+    List<ModificationData> changes = git.getCollectChangesPolicy().collectChanges(root, state1, state2, CheckoutRules.DEFAULT);
+    assertFalse(changes.isEmpty());
+    assertEquals("d47dda159b27b9a8c4cee4ce98e4435eb5b17168", changes.get(0).getVersion());
+
+    //second fetch reuses the worker
+    copyRepository(dataFile("repo_for_fetch.3"), remoteRepositoryDir);
+    RepositoryStateData state3 = git.getCurrentState(root);
+    changes = git.getCollectChangesPolicy().collectChanges(root, state2, state3, CheckoutRules.DEFAULT);
+    assertFalse(changes.isEmpty());
+    assertEquals("bba7fbcc200b4968e6abd2f7d475dc15306cafc6", changes.get(0).getVersion());
+  }
+
+
   @TestFor(issues = "TW-21747")
   @Test
   public void backslash_in_username() throws VcsException {
@@ -1255,7 +1422,7 @@ public class GitVcsSupportTest extends PatchTestCase {
     ServerPluginConfig config = myConfigBuilder.build();
     MirrorManager mirrorManager = new MirrorManagerImpl(config, new HashCalculatorImpl());
     RepositoryManager repositoryManager = new RepositoryManagerImpl(config, mirrorManager);
-    ResetCacheHandler resetHandler = new GitResetCacheHandler(repositoryManager);
+    ResetCacheHandler resetHandler = new GitResetCacheHandler(repositoryManager, new RepositoryStateCache());
     for (String cache : resetHandler.listCaches())
       resetHandler.resetCache(cache);
 
@@ -1298,6 +1465,54 @@ public class GitVcsSupportTest extends PatchTestCase {
     assertEquals(state.getDefaultBranchName(), expandedRef);
   }
 
+
+  @Test
+  public void current_state_should_be_reused_while_refs_do_not_move() throws Exception {
+    File remoteRepositoryDir = new File(myTmpDir, "repo_for_fetch");
+    copyRepository(dataFile("repo_for_fetch.1"), remoteRepositoryDir);
+    VcsRootImpl root = getRoot("master", false, remoteRepositoryDir);
+    GitVcsSupport git = getSupport();
+
+    assertNull(git.getLastStateDelta(root));
+    RepositoryStateData state1 = git.getCurrentState(root);
+    RepositoryStateDelta delta = git.getLastStateDelta(root);
+    assertNotNull(delta);
+    assertTrue(delta.getAddedRefs().contains("refs/heads/master"));
+
+    RepositoryStateData state2 = git.getCurrentState(root);
+    assertSame(state1, state2);
+    assertFalse(git.getLastStateDelta(root).isChanged());
+
+    copyRepository(dataFile("repo_for_fetch.2"), remoteRepositoryDir);
+    RepositoryStateData state3 = git.getCurrentState(root);
+    assertNotSame(state2, state3);
+    delta = git.getLastStateDelta(root);
+    assertTrue(delta.isChanged());
+    assertEquals(setOf("refs/heads/master"), delta.getUpdatedRefs());
+  }
+
+  @Test
+  public void state_delta_should_be_computed_per_root() throws Exception {
+    File remoteRepositoryDir = new File(myTmpDir, "repo_for_fetch");
+    copyRepository(dataFile("repo_for_fetch.1"), remoteRepositoryDir);
+    VcsRootImpl root1 = vcsRoot().withId(1).withFetchUrl(GitUtils.toURL(remoteRepositoryDir)).withBranch("master").build();
+    VcsRootImpl root2 = vcsRoot().withId(2).withFetchUrl(GitUtils.toURL(remoteRepositoryDir)).withBranch("master").build();
+    GitVcsSupport git = getSupport();
+
+    git.getCurrentState(root1);
+    git.getCurrentState(root1);
+    assertFalse(git.getLastStateDelta(root1).isChanged());
+    assertNull(git.getLastStateDelta(root2));
+
+    copyRepository(dataFile("repo_for_fetch.2"), remoteRepositoryDir);
+    git.getCurrentState(root2);
+    assertTrue(git.getLastStateDelta(root2).getAddedRefs().contains("refs/heads/master"));
+    assertFalse(git.getLastStateDelta(root1).isChanged());
+
+    git.getCurrentState(root1);
+    assertEquals(setOf("refs/heads/master"), git.getLastStateDelta(root1).getUpdatedRefs());
+  }
+
   @Test
   public void test_collect_changes_between_states() throws IOException, VcsException {
     RepositoryStateData fromState = RepositoryStateData.createVersionState("master", map("master", "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7"));
@@ -1414,6 +1629,32 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void roots_with_same_url_should_share_remote_refs() throws Exception {
+    ServerPluginConfig config = myConfigBuilder.withRemoteRefsSharingWindowMillis(TimeUnit.MINUTES.toMillis(1)).build();
+    final AtomicInteger transportCount = new AtomicInteger(0);
+    TransportFactory transportFactory = new TransportFactoryImpl(config) {
+      @Override
+      public Transport createTransport(@NotNull Repository r, @NotNull URIish url, @NotNull AuthSettings authSettings)
+        throws NotSupportedException, VcsException {
+        transportCount.incrementAndGet();
+        return super.createTransport(r, url, authSettings);
+      }
+    };
+    GitVcsSupport git = gitSupport()
+      .withPluginConfig(config)
+      .withTransportFactory(transportFactory)
+      .build();
+
+    VcsRoot root1 = vcsRoot().withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("master").build();
+    VcsRoot root2 = vcsRoot().withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("patch-tests").build();
+    RepositoryStateData state1 = git.getCurrentState(root1);
+    RepositoryStateData state2 = git.getCurrentState(root2);
+    assertEquals(1, transportCount.get());
+    assertEquals(state1.getBranchRevisions().get("refs/heads/patch-tests"), state2.getBranchRevisions().get("refs/heads/patch-tests"));
+  }
+
+
   @TestFor(issues = "TW-24128")
   @Test
   public void tags_in_currentState() throws Exception {
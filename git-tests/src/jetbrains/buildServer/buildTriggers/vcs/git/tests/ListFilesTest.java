@@ -59,14 +59,15 @@ public class ListFilesTest {
   private TempFiles myTempFiles;
   private GitVcsSupport myGit;
   private VcsRoot myRoot;
+  private File myRemoteRepositoryDir;
 
   @BeforeMethod
   public void setUp() throws Exception {
     myTempFiles = new TempFiles();
     myGit = gitSupport().withServerPaths(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).build();
-    File remoteRepositoryDir = new File(myTempFiles.createTempDir(), "repo.git");
-    FileUtil.copyDir(dataFile("repo.git"), remoteRepositoryDir);
-    myRoot = vcsRoot().withFetchUrl(remoteRepositoryDir.getAbsolutePath()).withBranch("patch-tests").build();
+    myRemoteRepositoryDir = new File(myTempFiles.createTempDir(), "repo.git");
+    FileUtil.copyDir(dataFile("repo.git"), myRemoteRepositoryDir);
+    myRoot = vcsRoot().withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).withBranch("patch-tests").build();
   }
 
   @AfterMethod
@@ -106,6 +107,20 @@ public class ListFilesTest {
   }
 
 
+  @Test(expectedExceptions = VcsFileNotFoundException.class)
+  public void list_files_in_dir_inside_submodule() throws VcsException {
+    ListDirectChildrenPolicy policy = getListFilesPolicy();
+    policy.listFiles(myRoot, "submodule/dir");
+  }
+
+
+  @Test(expectedExceptions = VcsFileNotFoundException.class)
+  public void list_files_in_file() throws VcsException {
+    ListDirectChildrenPolicy policy = getListFilesPolicy();
+    policy.listFiles(myRoot, "dir1/file1.txt");
+  }
+
+
   public void list_files_in_dir_which_contains_only_dirs() throws Exception {
     ListDirectChildrenPolicy policy = getListFilesPolicy();
     Collection<VcsFileData> files = policy.listFiles(myRoot, "dir/subdir");
@@ -113,6 +128,17 @@ public class ListFilesTest {
   }
 
 
+  public void should_list_files_in_local_mirror_when_branch_is_fetched() throws Exception {
+    ListDirectChildrenPolicy policy = getListFilesPolicy();
+    policy.listFiles(myRoot, "");
+    FileUtil.delete(myRemoteRepositoryDir);
+    Collection<VcsFileData> files = policy.listFiles(myRoot, "dir1");
+    assertThat(files, hasItems(vcsDir("subdir"),
+                               vcsFile("file1.txt"),
+                               vcsFile("file3.txt")));
+  }
+
+
   @NotNull
   private ListDirectChildrenPolicy getListFilesPolicy() {
     ListDirectChildrenPolicy policy = (ListDirectChildrenPolicy) myGit.getListFilesPolicy();
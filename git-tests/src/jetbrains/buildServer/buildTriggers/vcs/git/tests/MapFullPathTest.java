@@ -155,6 +155,32 @@ public class MapFullPathTest {
   }
 
 
+  public void fetched_commits_should_be_found_without_lookup() throws Exception {
+    final String existingCommit = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
+    final GitVcsSupport git = myContext.mock(GitVcsSupport.class);
+    final RevCommit commit = myContext.mock(RevCommit.class);
+    myMapFullPath.setGitVcs(git);
+    myContext.checking(new Expectations() {{
+      //the only lookup which creates the commit index of repository:
+      one(git).getCommit(with(any(Repository.class)), with(existingCommit)); will(returnValue(commit));
+    }});
+
+    RepositoryStateData state0 = RepositoryStateData.createSingleVersionState(existingCommit);
+    RepositoryStateData state1 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state0, state1, CheckoutRules.DEFAULT);
+    OperationContext context = myGit.createContext(myRoot, "map full path");
+    myMapFullPath.mapFullPath(context, myRootEntry, existingCommit + "||.");
+
+    remoteRepositoryUpdated();
+
+    RepositoryStateData state2 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state1, state2, CheckoutRules.DEFAULT);//fetched commits are added to the index
+    assertFalse(myGit.mapFullPath(myRootEntry, "d47dda159b27b9a8c4cee4ce98e4435eb5b17168||.").isEmpty());
+    assertFalse(myGit.mapFullPath(myRootEntry, "252771029d6ac61aaa78d282d5818d210812a4e5||.").isEmpty());
+    myContext.assertIsSatisfied();
+  }
+
+
   public void should_not_do_unnecessary_commit_lookup_when_repository_does_not_have_hint_revision() throws Exception {
     //root1 contains the commit
     //root2 doesn't
@@ -26,6 +26,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -117,6 +118,65 @@ public class MirrorManagerTest {
   }
 
 
+  public void should_restore_mappings_from_journal_with_incomplete_record() throws Exception {
+    String url1 = "git://some.org/repository1.git";
+    String url2 = "git://some.org/repository2.git";
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    File dir1 = mirrorManager.getMirrorDir(url1);
+    mirrorManager.getMirrorDir(url2);
+    mirrorManager.invalidate(dir1);
+    assertFalse(dir1.equals(mirrorManager.getMirrorDir(url1)));
+    Map<String, File> mappings = mirrorManager.getMappings();
+
+    //emulate crash while a new record was written
+    FileWriter writer = new FileWriter(new File(myConfig.getCachesDir(), "map"), true);
+    writer.write("git://some.org/repository3.git = git-");
+    writer.close();
+
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(mappings, mirrorManager.getMappings());
+    File dir3 = mirrorManager.getMirrorDir("git://some.org/repository3.git");
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(dir3, mirrorManager.getMirrorDir("git://some.org/repository3.git"));
+    assertEquals(3, mirrorManager.getMappings().size());
+  }
+
+
+  public void should_remember_last_used_time_after_restart() throws Exception {
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    File dir = mirrorManager.getMirrorDir("git://some.org/repository.git");
+    assertTrue(dir.mkdirs());
+    long before = System.currentTimeMillis();
+    mirrorManager.updateLastUsedTime(dir);
+    long lastUsedTime = mirrorManager.getLastUsedTime(dir);
+    assertTrue(lastUsedTime >= before);
+    mirrorManager.saveLastUsedTimes();
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(lastUsedTime, mirrorManager.getLastUsedTime(dir));
+  }
+
+
+  public void mirror_missing_in_index_should_not_use_stale_timestamp_file() throws Exception {
+    MirrorManager mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl());
+    File dir = mirrorManager.getMirrorDir("git://some.org/repository.git");
+    assertTrue(dir.mkdirs());
+    long monthAgo = System.currentTimeMillis() - 30 * 24 * 60 * 60 * 1000L;
+    FileWriter writer = new FileWriter(new File(dir, "timestamp"));
+    writer.write(String.valueOf(monthAgo - 1000));
+    writer.close();
+    assertTrue(dir.setLastModified(monthAgo));
+    assertEquals(dir.lastModified(), mirrorManager.getLastUsedTime(dir));
+
+    long before = System.currentTimeMillis();
+    mirrorManager.addMissingLastUsedTimes();
+    long lastUsedTime = mirrorManager.getLastUsedTime(dir);
+    assertTrue(lastUsedTime >= before);
+    mirrorManager.saveLastUsedTimes();
+    mirrorManager = new MirrorManagerImpl(myConfig, new HashCalculatorImpl()); //restart
+    assertEquals(lastUsedTime, mirrorManager.getLastUsedTime(dir));
+  }
+
+
   private void createRepositories(File baseDir, Map<String, String> url2dir) throws Exception {
     for (Map.Entry<String, String> entry : url2dir.entrySet()) {
       String url = entry.getKey();
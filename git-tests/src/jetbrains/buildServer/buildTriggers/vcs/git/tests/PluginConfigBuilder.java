@@ -52,6 +52,18 @@ public class PluginConfigBuilder {
   private Map<String, String> myFetcherProperties = new HashMap<String, String>();
   private boolean myUsePerBranchFetch;
   private int myGetConnectionRetryAttempts = -1;
+  private int myCommitChangesCacheSize = 0;
+  private int myCollectChangesThreadCount = 1;
+  private long myRemoteRefsSharingWindowMillis = 0;
+  private Integer mySshSessionPoolSizePerHost;
+  private Integer mySshSessionIdleTimeoutSeconds;
+  private int myFetchWorkersMaxIdle = 0;
+  private String myFetchProcessMaxMemory;
+  private Integer myFetchProcessMaxMemoryLimitMb;
+  private int myFetchProcessMemoryBudgetMb = 0;
+  private Integer myFetchConcurrencyLimit;
+  private Integer myFetchConcurrencyLimitPerHost;
+  private Integer myPatchContentLoaderThreads;
 
   public static PluginConfigBuilder pluginConfig() {
     return new PluginConfigBuilder();
@@ -78,6 +90,18 @@ public class PluginConfigBuilder {
         return myDelegate.getStreamFileThreshold();
       }
 
+      public int getPatchContentLoaderThreads() {
+        return myPatchContentLoaderThreads != null ? myPatchContentLoaderThreads : myDelegate.getPatchContentLoaderThreads();
+      }
+
+      public long getFileContentCacheSizeBytes() {
+        return myDelegate.getFileContentCacheSizeBytes();
+      }
+
+      public long getTreeListingCacheSizeBytes() {
+        return myDelegate.getTreeListingCacheSizeBytes();
+      }
+
       public int getFetchTimeout() {
         return myDelegate.getFetchTimeout();
       }
@@ -91,7 +115,15 @@ public class PluginConfigBuilder {
       }
 
       public String getFetchProcessMaxMemory() {
-        return myDelegate.getFetchProcessMaxMemory();
+        return myFetchProcessMaxMemory != null ? myFetchProcessMaxMemory : myDelegate.getFetchProcessMaxMemory();
+      }
+
+      public int getFetchProcessMaxMemoryLimitMb() {
+        return myFetchProcessMaxMemoryLimitMb != null ? myFetchProcessMaxMemoryLimitMb : myDelegate.getFetchProcessMaxMemoryLimitMb();
+      }
+
+      public int getFetchProcessMemoryBudgetMb() {
+        return myFetchProcessMemoryBudgetMb;
       }
 
       public boolean isSeparateProcessForFetch() {
@@ -118,6 +150,30 @@ public class PluginConfigBuilder {
         return myFetcherClassName != null ? myFetcherClassName : myDelegate.getFetcherClassName();
       }
 
+      public String getFetchWorkerClassName() {
+        return myDelegate.getFetchWorkerClassName();
+      }
+
+      public int getFetchWorkersMaxIdle() {
+        return myFetchWorkersMaxIdle;
+      }
+
+      public int getFetchWorkerIdleTimeoutSeconds() {
+        return myDelegate.getFetchWorkerIdleTimeoutSeconds();
+      }
+
+      public int getFetchWorkerMaxFetches() {
+        return myDelegate.getFetchWorkerMaxFetches();
+      }
+
+      public int getFetchConcurrencyLimit() {
+        return myFetchConcurrencyLimit != null ? myFetchConcurrencyLimit : myDelegate.getFetchConcurrencyLimit();
+      }
+
+      public int getFetchConcurrencyLimitPerHost() {
+        return myFetchConcurrencyLimitPerHost != null ? myFetchConcurrencyLimitPerHost : myDelegate.getFetchConcurrencyLimitPerHost();
+      }
+
       public int getFixedSubmoduleCommitSearchDepth() {
         return myFixedSubmoduleCommitSearchDepth != null ? myFixedSubmoduleCommitSearchDepth : myDelegate.getFixedSubmoduleCommitSearchDepth();
       }
@@ -130,6 +186,10 @@ public class PluginConfigBuilder {
         return myMirrorExpirationTimeoutMillis != null ? myMirrorExpirationTimeoutMillis : myDelegate.getMirrorExpirationTimeoutMillis();
       }
 
+      public int getMirrorLastUsedTimeSaveIntervalSeconds() {
+        return myDelegate.getMirrorLastUsedTimeSaveIntervalSeconds();
+      }
+
       @NotNull
       public List<String> getProxySettingsForSeparateProcess() {
         return Collections.emptyList();
@@ -140,6 +200,14 @@ public class PluginConfigBuilder {
         return null;
       }
 
+      public int getSshSessionPoolSizePerHost() {
+        return mySshSessionPoolSizePerHost != null ? mySshSessionPoolSizePerHost : myDelegate.getSshSessionPoolSizePerHost();
+      }
+
+      public int getSshSessionIdleTimeoutSeconds() {
+        return mySshSessionIdleTimeoutSeconds != null ? mySshSessionIdleTimeoutSeconds : myDelegate.getSshSessionIdleTimeoutSeconds();
+      }
+
       public int getNumberOfCommitsWhenFromVersionNotFound() {
         return myNumberOfCommitsWhenFromVersionNotFound != -1 ? myNumberOfCommitsWhenFromVersionNotFound : myDelegate.getNumberOfCommitsWhenFromVersionNotFound();
       }
@@ -169,6 +237,18 @@ public class PluginConfigBuilder {
         return 100;
       }
 
+      public int getCommitChangesCacheSize() {
+        return myCommitChangesCacheSize;
+      }
+
+      public int getCollectChangesThreadCount() {
+        return myCollectChangesThreadCount;
+      }
+
+      public long getRemoteRefsSharingWindowMillis() {
+        return myRemoteRefsSharingWindowMillis;
+      }
+
       public long getConnectionRetryIntervalMillis() {
         return myDelegate.getConnectionRetryIntervalMillis();
       }
@@ -270,4 +350,64 @@ public class PluginConfigBuilder {
     myGetConnectionRetryAttempts = retryAttemptsCount;
     return this;
   }
+
+  public PluginConfigBuilder withCommitChangesCacheSize(int cacheSize) {
+    myCommitChangesCacheSize = cacheSize;
+    return this;
+  }
+
+  public PluginConfigBuilder withCollectChangesThreadCount(int threadCount) {
+    myCollectChangesThreadCount = threadCount;
+    return this;
+  }
+
+  public PluginConfigBuilder withRemoteRefsSharingWindowMillis(long windowMillis) {
+    myRemoteRefsSharingWindowMillis = windowMillis;
+    return this;
+  }
+
+  public PluginConfigBuilder withSshSessionPoolSizePerHost(int poolSize) {
+    mySshSessionPoolSizePerHost = poolSize;
+    return this;
+  }
+
+  public PluginConfigBuilder withSshSessionIdleTimeoutSeconds(int timeoutSeconds) {
+    mySshSessionIdleTimeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchWorkersMaxIdle(int maxIdle) {
+    myFetchWorkersMaxIdle = maxIdle;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchProcessMaxMemory(String maxMemory) {
+    myFetchProcessMaxMemory = maxMemory;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchProcessMaxMemoryLimitMb(int limitMb) {
+    myFetchProcessMaxMemoryLimitMb = limitMb;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchProcessMemoryBudgetMb(int budgetMb) {
+    myFetchProcessMemoryBudgetMb = budgetMb;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchConcurrencyLimit(int limit) {
+    myFetchConcurrencyLimit = limit;
+    return this;
+  }
+
+  public PluginConfigBuilder withFetchConcurrencyLimitPerHost(int limit) {
+    myFetchConcurrencyLimitPerHost = limit;
+    return this;
+  }
+
+  public PluginConfigBuilder withPatchContentLoaderThreads(int threads) {
+    myPatchContentLoaderThreads = threads;
+    return this;
+  }
 }
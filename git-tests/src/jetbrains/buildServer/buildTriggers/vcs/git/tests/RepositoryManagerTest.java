@@ -28,11 +28,14 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
-import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
 
 /**
  * @author dmitry.neverov
@@ -73,7 +76,62 @@ public class RepositoryManagerTest {
     RepositoryManager repositoryManager = getRepositoryManager();
     ReadWriteLock rmLock1 = repositoryManager.getRmLock(dir1);
     ReadWriteLock rmLock2 = repositoryManager.getRmLock(new File(".." + File.separator + dir1.getCanonicalFile().getName()));
-    assertSame(rmLock1, rmLock2);
+    rmLock1.readLock().lock();
+    try {
+      assertFalse(rmLock2.writeLock().tryLock());
+    } finally {
+      rmLock1.readLock().unlock();
+    }
+  }
+
+
+  public void mirror_locks_should_be_removed_when_released() throws Exception {
+    RepositoryManagerImpl repositoryManager = getRepositoryManager();
+    File dir = repositoryManager.getMirrorDir("git://some.org/repository.git");
+    repositoryManager.getRmLock(dir).readLock().lock();
+    Lock writeLock = repositoryManager.getWriteLock(dir);
+    writeLock.lock();
+    assertEquals(1, repositoryManager.getLockedMirrorsCount());
+    assertFalse(repositoryManager.getRmLock(new File(dir.getPath())).writeLock().tryLock());
+    assertEquals(1, repositoryManager.getLockedMirrorsCount());
+
+    writeLock.unlock();
+    assertEquals(1, repositoryManager.getLockedMirrorsCount());
+    //lock can be released via another instance, like GitResetCacheHandler does
+    repositoryManager.getRmLock(dir).readLock().unlock();
+    assertEquals(0, repositoryManager.getLockedMirrorsCount());
+  }
+
+
+  public void held_mirror_lock_should_not_be_replaced() throws Exception {
+    final RepositoryManagerImpl repositoryManager = getRepositoryManager();
+    final File dir = repositoryManager.getMirrorDir("git://some.org/repository.git");
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    repositoryManager.getRmLock(dir).readLock().lock();
+    Thread remover = new Thread(new Runnable() {
+      public void run() {
+        Lock rmLock = repositoryManager.getRmLock(dir).writeLock();
+        rmLock.lock();
+        try {
+          locked.countDown();
+          release.await();
+        } catch (InterruptedException e) {
+          //exit
+        } finally {
+          rmLock.unlock();
+        }
+      }
+    });
+    remover.start();
+    repositoryManager.getRmLock(dir).readLock().unlock();
+    assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+    assertFalse(repositoryManager.getRmLock(dir).readLock().tryLock());
+    assertEquals(1, repositoryManager.getLockedMirrorsCount());
+    release.countDown();
+    remover.join();
+    assertEquals(0, repositoryManager.getLockedMirrorsCount());
   }
 
 
@@ -96,7 +154,7 @@ public class RepositoryManagerTest {
     return repository.getDirectory().getCanonicalPath();
   }
 
-  private RepositoryManager getRepositoryManager() {
+  private RepositoryManagerImpl getRepositoryManager() {
     ServerPluginConfig config = myPluginConfig.build();
     MirrorManager mirrorManager = new MirrorManagerImpl(config, new HashCalculatorImpl());
     return new RepositoryManagerImpl(config, mirrorManager);
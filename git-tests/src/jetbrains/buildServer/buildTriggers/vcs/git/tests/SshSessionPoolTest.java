@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.jcraft.jsch.Session;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.SshSessionPool;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+@Test
+public class SshSessionPoolTest {
+
+  private Mockery myContext;
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myContext = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myTempFiles = new TempFiles();
+    myConfigBuilder = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void released_session_should_be_reused_for_the_same_key() throws Exception {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.withSshSessionPoolSizePerHost(2).build());
+    SshSessionPool.PooledSession session = createSession("key1", "some.org", false);
+
+    pool.release(session);
+    assertNull(pool.take("key2"));
+    assertSame(session, pool.take("key1"));
+    assertNull(pool.take("key1"));
+    myContext.assertIsSatisfied();
+  }
+
+
+  public void broken_session_should_not_be_reused() throws Exception {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.withSshSessionPoolSizePerHost(2).build());
+    final Session jschSession = myContext.mock(Session.class);
+    final RemoteSession remoteSession = myContext.mock(RemoteSession.class);
+    myContext.checking(new Expectations() {{
+      oneOf(jschSession).isConnected(); will(returnValue(true));//check on release
+      oneOf(jschSession).isConnected(); will(returnValue(false));//check on take
+      oneOf(remoteSession).disconnect();
+    }});
+
+    pool.release(new SshSessionPool.PooledSession("key", "some.org", remoteSession, jschSession));
+    assertNull(pool.take("key"));
+    myContext.assertIsSatisfied();
+  }
+
+
+  public void should_limit_number_of_idle_sessions_per_host() throws Exception {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.withSshSessionPoolSizePerHost(1).build());
+    SshSessionPool.PooledSession session1 = createSession("key1", "some.org", false);
+    SshSessionPool.PooledSession session2 = createSession("key2", "some.org", true);
+
+    pool.release(session1);
+    pool.release(session2);
+    assertSame(session1, pool.take("key1"));
+    assertNull(pool.take("key2"));
+    myContext.assertIsSatisfied();
+  }
+
+
+  public void idle_session_should_be_disconnected_without_pool_activity() throws Exception {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.withSshSessionPoolSizePerHost(1).withSshSessionIdleTimeoutSeconds(1).build());
+    final Session jschSession = myContext.mock(Session.class);
+    myContext.checking(new Expectations() {{
+      allowing(jschSession).isConnected(); will(returnValue(true));
+    }});
+    final CountDownLatch disconnected = new CountDownLatch(1);
+    RemoteSession remoteSession = new RemoteSession() {
+      public Process exec(String commandName, int timeout) {
+        throw new UnsupportedOperationException();
+      }
+      public void disconnect() {
+        disconnected.countDown();
+      }
+    };
+
+    pool.release(new SshSessionPool.PooledSession("key", "some.org", remoteSession, jschSession));
+    assertTrue("Idle session is not disconnected", disconnected.await(10, TimeUnit.SECONDS));
+    assertNull(pool.take("key"));
+  }
+
+
+  private SshSessionPool.PooledSession createSession(String key, String host, final boolean disconnectExpected) throws Exception {
+    final Session jschSession = myContext.mock(Session.class, key + "-jsch");
+    final RemoteSession remoteSession = myContext.mock(RemoteSession.class, key + "-remote");
+    myContext.checking(new Expectations() {{
+      allowing(jschSession).isConnected(); will(returnValue(true));
+      allowing(jschSession).sendKeepAliveMsg();
+      if (disconnectExpected) {
+        oneOf(remoteSession).disconnect();
+      } else {
+        never(remoteSession).disconnect();
+      }
+    }});
+    return new SshSessionPool.PooledSession(key, host, remoteSession, jschSession);
+  }
+}